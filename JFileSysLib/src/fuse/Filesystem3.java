@@ -83,7 +83,8 @@ public interface Filesystem3 extends FilesystemConstants
    // if open returns a filehandle by calling FuseOpenSetter.setFh() method, it will be passed to every method that supports 'fh' argument
    public int open(String path, int flags, FuseOpenSetter openSetter) throws FuseException;
 
-   // fh is filehandle passed from open
+   // fh is filehandle passed from open,
+   // the number of read bytes is taken from the position of buf, so it has to be advanced by exactly that count and 0 (or an errno) is returned
    public int read(String path, Object fh, ByteBuffer buf, long offset) throws FuseException;
 
    // fh is filehandle passed from open,
@@ -8,6 +8,7 @@
  */
 package fuse;
 
+import fuse.util.PathDecoder;
 import org.apache.commons.logging.Log;
 
 import java.nio.ByteBuffer;
@@ -27,6 +28,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
     private LifecycleSupport lifecycleSupport;
 
     private Charset cs;
+    private PathDecoder decoder;
     private Log log;
 
 
@@ -52,6 +54,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
         }
 
         this.cs = cs;
+        this.decoder = new PathDecoder(cs);
         this.log = log;
     }
 
@@ -60,7 +63,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int getattr(ByteBuffer path, FuseGetattrSetter getattrSetter) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("getattr: path=" + pathStr);
@@ -76,7 +79,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int readlink(ByteBuffer path, ByteBuffer link) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("readlink: path=" + pathStr);
@@ -109,7 +112,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int getdir(ByteBuffer path, FuseFSDirFiller dirFiller) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("getdir: path=" + pathStr);
@@ -126,7 +129,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int mknod(ByteBuffer path, int mode, int rdev) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("mknod: path=" + pathStr + ", mode=" + Integer.toOctalString(mode) + "(OCT), rdev=" + rdev);
@@ -142,7 +145,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int mkdir(ByteBuffer path, int mode) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("mkdir: path=" + pathStr + ", mode=" + Integer.toOctalString(mode) + "(OCT)");
@@ -158,7 +161,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int unlink(ByteBuffer path) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("unlink: path=" + pathStr);
@@ -174,7 +177,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int rmdir(ByteBuffer path) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("rmdir: path=" + pathStr);
@@ -190,8 +193,8 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int symlink(ByteBuffer from, ByteBuffer to) {
-        String fromStr = cs.decode(from).toString();
-        String toStr = cs.decode(to).toString();
+        String fromStr = decoder.decode(from);
+        String toStr = decoder.decode(to);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("symlink: from=" + fromStr + " to=" + toStr);
@@ -207,8 +210,8 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int rename(ByteBuffer from, ByteBuffer to) {
-        String fromStr = cs.decode(from).toString();
-        String toStr = cs.decode(to).toString();
+        String fromStr = decoder.decode(from);
+        String toStr = decoder.decode(to);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("rename: from=" + fromStr + " to=" + toStr);
@@ -224,8 +227,8 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int link(ByteBuffer from, ByteBuffer to) {
-        String fromStr = cs.decode(from).toString();
-        String toStr = cs.decode(to).toString();
+        String fromStr = decoder.decode(from);
+        String toStr = decoder.decode(to);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("link: from=" + fromStr + " to=" + toStr);
@@ -241,7 +244,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int chmod(ByteBuffer path, int mode) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("chmod: path=" + pathStr + ", mode=" + Integer.toOctalString(mode) + "(OCT)");
@@ -257,7 +260,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int chown(ByteBuffer path, int uid, int gid) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("chown: path=" + pathStr + ", uid=" + uid + ", gid=" + gid);
@@ -273,7 +276,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int truncate(ByteBuffer path, long size) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("truncate: path=" + pathStr + ", size=" + size);
@@ -289,7 +292,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int utime(ByteBuffer path, int atime, int mtime) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("utime: path=" + pathStr + ", atime=" + atime + " (" + new Date((long) atime * 1000L) + "), mtime=" + mtime + " (" + new Date((long) mtime * 1000L) + ")");
@@ -319,7 +322,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int open(ByteBuffer path, int flags, FuseOpenSetter openSetter) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("open: path=" + pathStr + ", flags=" + flags);
@@ -335,7 +338,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int read(ByteBuffer path, Object fh, ByteBuffer buf, long offset) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("read: path=" + pathStr + ", fh=" + fh + ", offset=" + offset);
@@ -351,7 +354,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int write(ByteBuffer path, Object fh, boolean isWritepage, ByteBuffer buf, long offset) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("write: path=" + pathStr + ", fh=" + fh + ", isWritepage=" + isWritepage + ", offset=" + offset);
@@ -367,7 +370,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int flush(ByteBuffer path, Object fh) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("flush: path=" + pathStr + ", fh=" + fh);
@@ -383,7 +386,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int release(ByteBuffer path, Object fh, int flags) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("release: path=" + pathStr + ", fh=" + fh + ", flags=" + flags);
@@ -399,14 +402,14 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 
 
     public int fsync(ByteBuffer path, Object fh, boolean isDatasync) {
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("fsync: path=" + pathStr + ", fh=" + fh + ", isDatasync=" + isDatasync);
         }
 
         try {
-            return handleErrno(fs3.fsync(cs.decode(path).toString(), fh, isDatasync));
+            return handleErrno(fs3.fsync(pathStr, fh, isDatasync));
         }
         catch(Exception e) {
             return handleException(e);
@@ -421,8 +424,8 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
             return handleErrno(Errno.ENOTSUPP);
         }
 
-        String pathStr = cs.decode(path).toString();
-        String nameStr = cs.decode(name).toString();
+        String pathStr = decoder.decode(path);
+        String nameStr = decoder.decode(name);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("getxattrsize: path=" + pathStr + ", name=" + nameStr);
@@ -441,8 +444,8 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
             return handleErrno(Errno.ENOTSUPP);
         }
 
-        String pathStr = cs.decode(path).toString();
-        String nameStr = cs.decode(name).toString();
+        String pathStr = decoder.decode(path);
+        String nameStr = decoder.decode(name);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("getxattr: path=" + pathStr + ", name=" + nameStr);
@@ -477,7 +480,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
             return handleErrno(Errno.ENOTSUPP);
         }
 
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("listxattrsize: path=" + pathStr);
@@ -572,7 +575,7 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
             return handleErrno(Errno.ENOTSUPP);
         }
 
-        String pathStr = cs.decode(path).toString();
+        String pathStr = decoder.decode(path);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("listxattr: path=" + pathStr);
@@ -601,8 +604,8 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
             return handleErrno(Errno.ENOTSUPP);
         }
 
-        String pathStr = cs.decode(path).toString();
-        String nameStr = cs.decode(name).toString();
+        String pathStr = decoder.decode(path);
+        String nameStr = decoder.decode(name);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("setxattr: path=" + pathStr + ", name=" + nameStr + ", value=" + value + ", flags=" + flags);
@@ -621,8 +624,8 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
             return handleErrno(Errno.ENOTSUPP);
         }
 
-        String pathStr = cs.decode(path).toString();
-        String nameStr = cs.decode(name).toString();
+        String pathStr = decoder.decode(path);
+        String nameStr = decoder.decode(name);
 
         if (log != null && log.isDebugEnabled()) {
             log.debug("removexattr: path= " + pathStr + ", name=" + nameStr);
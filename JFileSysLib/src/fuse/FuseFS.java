@@ -54,6 +54,7 @@ public interface FuseFS extends FilesystemConstants {
 
     public int open(ByteBuffer path, int flags, FuseOpenSetter openSetter);
 
+    // the native glue takes the number of read bytes from the position of buf
     public int read(ByteBuffer path, Object fh, ByteBuffer buf, long offset);
 
     public int write(ByteBuffer path, Object fh, boolean isWritepage, ByteBuffer buf, long offset);
@@ -0,0 +1,119 @@
+package fuse.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the paths passed by the native FUSE callbacks.
+ * Every thread reuses its own decoder and remembers the recently decoded paths by their raw bytes,
+ * so looking up a path again does not allocate anything.
+ * Malformed input is replaced, like <code>Charset.decode</code> does.
+ */
+public class PathDecoder {
+
+    // must be a power of two
+    private static final int CACHE_SIZE = 512;
+    private static final int MAX_CACHED_LENGTH = 1024;
+
+    private final Charset cs;
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State(cs.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        }
+    };
+
+    public PathDecoder(Charset cs) {
+        this.cs = cs;
+    }
+
+    /**
+     * Decodes the remaining bytes of the buffer and consumes them.
+     */
+    public String decode(ByteBuffer bytes) {
+        return states.get().decode(bytes);
+    }
+
+    private static final class State {
+        private final CharsetDecoder decoder;
+        private CharBuffer chars = CharBuffer.allocate(256);
+        private final long[][] keys = new long[CACHE_SIZE][];
+        private final int[] lengths = new int[CACHE_SIZE];
+        private final String[] values = new String[CACHE_SIZE];
+
+        State(CharsetDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        String decode(ByteBuffer bytes) {
+            int start = bytes.position();
+            int length = bytes.remaining();
+            if (length > MAX_CACHED_LENGTH) {
+                return decodeUncached(bytes);
+            }
+
+            // the bytes are read eight at a time, the last word is padded with zeros
+            int words = (length + 7) >>> 3;
+            long hash = length;
+            for (int i = 0; i < words; i++) {
+                hash = 31 * hash + word(bytes, start, length, i);
+            }
+            int index = (int) (hash ^ (hash >>> 32) ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+            long[] key = keys[index];
+            if (key != null && lengths[index] == length && matches(key, bytes, start, length)) {
+                bytes.position(bytes.limit());
+                return values[index];
+            }
+
+            key = new long[words];
+            for (int i = 0; i < words; i++) {
+                key[i] = word(bytes, start, length, i);
+            }
+            String value = decodeUncached(bytes);
+            keys[index] = key;
+            lengths[index] = length;
+            values[index] = value;
+            return value;
+        }
+
+        private static long word(ByteBuffer bytes, int start, int length, int i) {
+            int offset = i << 3;
+            if (offset + 8 <= length) {
+                return bytes.getLong(start + offset);
+            }
+            long word = 0;
+            for (int j = offset; j < length; j++) {
+                word = (word << 8) | (bytes.get(start + j) & 0xff);
+            }
+            return word;
+        }
+
+        private static boolean matches(long[] key, ByteBuffer bytes, int start, int length) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != word(bytes, start, length, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String decodeUncached(ByteBuffer bytes) {
+            int maxChars = (int) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+            if (chars.capacity() < maxChars) {
+                chars = CharBuffer.allocate(maxChars);
+            }
+            chars.clear();
+            decoder.reset();
+            decoder.decode(bytes, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+            return chars.toString();
+        }
+    }
+}
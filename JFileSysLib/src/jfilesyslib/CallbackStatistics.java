@@ -0,0 +1,148 @@
+package jfilesyslib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about the threads, which have called the file system while it was mounted (supported only on Unix)<br>
+ * Threads are identified by their name.
+ * @author Marc Miltenberger
+ */
+public class CallbackStatistics {
+	/**
+	 * The statistics of a single thread
+	 * @author Marc Miltenberger
+	 */
+	public static class ThreadStatistics {
+		private final String threadName;
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		ThreadStatistics(String threadName) {
+			this.threadName = threadName;
+		}
+
+		void add(long nanos) {
+			calls.incrementAndGet();
+			busyNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+				max = maxNanos.get();
+		}
+
+		/**
+		 * Returns the name of the thread
+		 * @return the thread name
+		 */
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/**
+		 * Returns the number of calls made by the thread
+		 * @return the number of calls
+		 */
+		public long getCallCount() {
+			return calls.get();
+		}
+
+		/**
+		 * Returns the time the thread has spent in the file system
+		 * @return the time in nanoseconds
+		 */
+		public long getBusyNanos() {
+			return busyNanos.get();
+		}
+
+		/**
+		 * Returns the duration of the longest call made by the thread
+		 * @return the duration in nanoseconds
+		 */
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		@Override
+		public String toString() {
+			return threadName + ": " + getCallCount() + " calls, " + getBusyNanos() / 1000000 + " ms busy, longest call " + getMaxNanos() / 1000 + " us";
+		}
+	}
+
+	private final ConcurrentHashMap<String, ThreadStatistics> threads = new ConcurrentHashMap<String, ThreadStatistics>();
+	private final AtomicInteger activeCalls = new AtomicInteger();
+	private final AtomicInteger peakActiveCalls = new AtomicInteger();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	CallbackStatistics() {
+	}
+
+	void enter() {
+		int active = activeCalls.incrementAndGet();
+		int peak = peakActiveCalls.get();
+		while (active > peak && !peakActiveCalls.compareAndSet(peak, active))
+			peak = peakActiveCalls.get();
+	}
+
+	void leave(long nanos) {
+		activeCalls.decrementAndGet();
+		String name = Thread.currentThread().getName();
+		ThreadStatistics statistics = threads.get(name);
+		if (statistics == null)
+		{
+			statistics = new ThreadStatistics(name);
+			ThreadStatistics existing = threads.putIfAbsent(name, statistics);
+			if (existing != null)
+				statistics = existing;
+		}
+		statistics.add(nanos);
+	}
+
+	void addWait(long nanos) {
+		waitNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Returns the statistics of every thread, which has called the file system
+	 * @return the statistics per thread
+	 */
+	public List<ThreadStatistics> getThreads() {
+		return new ArrayList<ThreadStatistics>(threads.values());
+	}
+
+	/**
+	 * Returns the number of calls currently running in the file system
+	 * @return the number of active calls
+	 */
+	public int getActiveCalls() {
+		return activeCalls.get();
+	}
+
+	/**
+	 * Returns the highest number of calls, which have been running in the file system at once
+	 * @return the peak number of active calls
+	 */
+	public int getPeakActiveCalls() {
+		return peakActiveCalls.get();
+	}
+
+	/**
+	 * Returns the time callers have waited, because the thread count was exhausted
+	 * @return the waiting time in nanoseconds
+	 */
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("active calls: ").append(getActiveCalls()).append(", peak: ").append(getPeakActiveCalls()).append(", waited ").append(getWaitNanos() / 1000000).append(" ms");
+		for (ThreadStatistics statistics : threads.values())
+			builder.append('\n').append(statistics);
+		return builder.toString();
+	}
+}
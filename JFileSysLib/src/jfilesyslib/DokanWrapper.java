@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import jfilesyslib.data.DirectoryEntry;
 import jfilesyslib.data.DirectoryInfo;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.FileHandle;
@@ -404,25 +405,22 @@ class DokanWrapper implements DokanOperations {
 		try {
 			if (DEBUG)
 				System.out.println("FindFiles: " + pathName);
-			Iterable<EntityInfo> info = fileSystem.listDirectory(mapWinToUnixPath(pathName));
+			Iterable<DirectoryEntry> info = fileSystem.listDirectoryWithAttributes(mapWinToUnixPath(pathName), false, true);
 			if (info == null)
 			{
 				System.err.println("getFileSystemName(\"$PATH$\") returns null".replace("$PATH$", mapWinToUnixPath(pathName)));
 				return new Win32FindData[0];
 			}
 			List<Win32FindData> resultList = new LinkedList<Win32FindData>();
-			for (EntityInfo inf : info)
+			for (DirectoryEntry entry : info)
 			{
+				EntityInfo inf = entry.getInfo();
 				Win32FindData data = new Win32FindData();
 				data.fileName = mapUnixToWinPath(inf.getFileName());
 				data.creationTime = inf.getCreationTime();
 				data.lastAccessTime = inf.getLastAccessTime();
 				data.lastWriteTime = inf.getLastModificationTime();
-				WindowsAttributes attr = null;
-				try {
-					attr = fileSystem.getWindowsAttributes(inf.getFullPath());
-				} catch (UnsupportedFeatureException e) {
-				}
+				WindowsAttributes attr = entry.getWindowsAttributes();
 
 				if (DEBUG)
 					System.out.println("FindFiles: Found " + data.fileName);
@@ -471,7 +469,7 @@ class DokanWrapper implements DokanOperations {
 			//throw new DokanOperationException(net.decasdev.dokan.WinError.ERROR_ACCESS_DENIED);
 		
 		try {
-			fileSystem.flush(handle);
+			fileSystem.fsync(handle, false);
 		} catch (DriveFullException e) {
 			throw new DokanOperationException(net.decasdev.dokan.WinError.ERROR_DISK_FULL);
 		} catch (Exception e)
@@ -1,7 +1,10 @@
 package jfilesyslib;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import jfilesyslib.data.DirectoryEntry;
 import jfilesyslib.data.DirectoryInfo;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.ExtendedAttribute;
@@ -30,6 +33,7 @@ import jfilesyslib.exceptions.UnsupportedFeatureException;
 public abstract class FileSystem {
 	String mountPath = null;
 	Thread thrMounted;
+	CallbackStatistics callbackStatistics;
 
 	/**
 	 * Reads a given directory and returns an iterator.
@@ -41,6 +45,45 @@ public abstract class FileSystem {
 	 */
 	public abstract Iterable<EntityInfo> listDirectory(String path) throws NotADirectoryException, PathNotFoundException, AccessDeniedException;
 
+	/**
+	 * Reads a given directory and returns its entries together with their attributes in one pass.<br>
+	 * The default implementation calls getUnixPermissions and getWindowsAttributes for every entry of listDirectory.
+	 * You should consider to override it, if the attributes can be read along with the directory.
+	 * @param path the path
+	 * @param unixPermissions whether the unix permissions of the entries are needed
+	 * @param windowsAttributes whether the windows attributes of the entries are needed
+	 * @return the entries
+	 * @throws NotADirectoryException the path is not a directory
+	 * @throws PathNotFoundException the path could not be found
+	 * @throws AccessDeniedException the access is denied
+	 */
+	public Iterable<DirectoryEntry> listDirectoryWithAttributes(String path, boolean unixPermissions, boolean windowsAttributes) throws NotADirectoryException, PathNotFoundException, AccessDeniedException {
+		Iterable<EntityInfo> infos = listDirectory(path);
+		List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+		if (infos == null)
+		{
+			System.err.println("Your file system returned null for listDirectory(" + path + ")");
+			return entries;
+		}
+		for (EntityInfo info : infos)
+		{
+			UnixPermissions perms = null;
+			WindowsAttributes attributes = null;
+			try {
+				if (unixPermissions)
+					perms = getUnixPermissions(info.getFullPath());
+				if (windowsAttributes)
+					attributes = getWindowsAttributes(info.getFullPath());
+			} catch (PathNotFoundException e) {
+				// deleted in the meantime
+				continue;
+			} catch (UnsupportedFeatureException e) {
+			}
+			entries.add(new DirectoryEntry(info, perms, attributes));
+		}
+		return entries;
+	}
+
 	/**
 	 * Returns some meta data about the path.
 	 * @param path the path
@@ -95,6 +138,8 @@ public abstract class FileSystem {
 	/**
 	 * Reads from a file.<br>
 	 * Offset specifies the offset within the opened file, not within the buffer.<br>
+	 * The read bytes are put at the position of the buffer, at most <i>buffer.remaining()</i> bytes.<br>
+	 * Less bytes than requested may only be returned at the end of the file, 0 is returned at or after the end.<br>
 	 * The handle is guaranteed to be a valid file handle.
 	 * @param handle the file handle
 	 * @param buffer the buffer to fill
@@ -135,6 +180,19 @@ public abstract class FileSystem {
 	 */
 	public abstract void flush(FileHandle handle) throws DriveFullException;
 
+	/**
+	 * Makes the written data durable, e.g. writes it to the disk.<br>
+	 * In contrast to flush, which is called whenever a handle is closed, this is only called if an application asks for it explicitly.<br>
+	 * The default implementation calls flush.<br>
+	 * The handle is guaranteed to be a valid file handle.
+	 * @param handle the file handle
+	 * @param dataOnly whether only the content needs to be durable, not the meta data (like the modification time)
+	 * @throws DriveFullException there is no more free space
+	 */
+	public void fsync(FileHandle handle, boolean dataOnly) throws DriveFullException {
+		flush(handle);
+	}
+
 	/**
 	 * Closes the file handle.<br>
 	 * The handle is guaranteed to be a valid file handle and not closed yet.
@@ -246,6 +304,16 @@ public abstract class FileSystem {
 	public String getMountPath() {
 		return mountPath;
 	}
+
+	/**
+	 * Returns the statistics about the threads calling the file system.<br>
+	 * They are only collected on Unix, if they have been turned on in the mount options.
+	 * @return the statistics or null
+	 * @see MountOptions#setThreadStatistics(boolean)
+	 */
+	public CallbackStatistics getCallbackStatistics() {
+		return callbackStatistics;
+	}
 	
 	/**
 	 * Creates a symbolic link at <i>source</i> pointing to <i>destination</i>.<br>
@@ -425,7 +493,9 @@ public abstract class FileSystem {
 
 
 	/**
-	 * Returns the number of files (and direct subdirectories) in a directory
+	 * Returns the number of files (and direct subdirectories) in a directory.<br>
+	 * It is called for every stat of a directory. The default implementation iterates over listDirectory,
+	 * so you should consider to override it with a faster implementation.
 	 * @param info the directory info
 	 * @return the number of files
 	 */
@@ -450,6 +520,31 @@ public abstract class FileSystem {
 	}
 
 
+	/**
+	 * Returns a number which identifies the file or directory as long as it exists, e.g. the inode number of the underlying file.<br>
+	 * By default it returns 0, so the driver assigns a number to the path, which follows renames.
+	 * A file system which supplies numbers should supply them for all of its entries and keep them below 2<sup>62</sup>,
+	 * where the numbers assigned by the driver start.
+	 * @param info the entry as returned by getFileMetaData or listDirectory
+	 * @return the inode number or 0 if the driver should assign one
+	 */
+	public long getInodeNumber(EntityInfo info) {
+		return 0;
+	}
+
+	/**
+	 * Returns the unix permissions of an entry, which has just been looked up.<br>
+	 * By default it calls {@link #getUnixPermissions(String)}; a file system which reads the permissions
+	 * along with the other metadata may return them without looking up the entry again.
+	 * @param info the entry as returned by getFileMetaData or listDirectory
+	 * @return the permissions
+	 * @throws PathNotFoundException the path was not found
+	 */
+	public UnixPermissions getUnixPermissions(EntityInfo info) throws PathNotFoundException {
+		return getUnixPermissions(info.getFullPath());
+	}
+
+
 	/**
 	 * Checks whether path is a file or directory and calls the appropriate method
 	 * @param path the path
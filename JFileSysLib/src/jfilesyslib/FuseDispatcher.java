@@ -0,0 +1,372 @@
+package jfilesyslib;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import fuse.Errno;
+import fuse.Filesystem3;
+import fuse.FuseDirFiller;
+import fuse.FuseException;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+import fuse.FuseSizeSetter;
+import fuse.FuseStatfsSetter;
+import fuse.XattrLister;
+import fuse.XattrSupport;
+
+/**
+ * Applies the thread model of the mount options to the FUSE callbacks.<br>
+ * The number of concurrent calls can be bounded, the calls can be run by an executor
+ * and statistics about the calling threads can be collected.<br>
+ * Every callback allocates a call object and, with an executor, a task; the mounter only uses it if one of these features is requested.
+ * @author Marc Miltenberger
+ */
+class FuseDispatcher implements Filesystem3, XattrSupport {
+	private abstract static class Call {
+		abstract int call() throws FuseException;
+	}
+
+	private final FuseWrapper fs;
+	private final Semaphore permits;
+	private final Executor executor;
+	private final CallbackStatistics statistics;
+
+	/**
+	 * Creates a new FuseDispatcher
+	 * @param fs the wrapped file system
+	 * @param maxConcurrentCalls the maximum number of concurrent calls, not bounded if it is not positive
+	 * @param executor the executor running the calls or null to run them on the FUSE threads
+	 * @param statistics the statistics to update or null
+	 */
+	public FuseDispatcher(FuseWrapper fs, int maxConcurrentCalls, Executor executor, CallbackStatistics statistics) {
+		this.fs = fs;
+		if (maxConcurrentCalls > 0)
+			this.permits = new Semaphore(maxConcurrentCalls, true);
+		else
+			this.permits = null;
+		this.executor = executor;
+		this.statistics = statistics;
+	}
+
+	private int dispatch(final Call call) throws FuseException {
+		if (permits != null)
+		{
+			long start = statistics != null ? System.nanoTime() : 0;
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Errno.EINTR;
+			}
+			if (statistics != null)
+				statistics.addWait(System.nanoTime() - start);
+		}
+		try {
+			if (executor == null)
+				return run(call);
+
+			FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return run(call);
+				}
+			});
+			executor.execute(task);
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Errno.EINTR;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof FuseException)
+					throw (FuseException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new RuntimeException(cause);
+			}
+		} finally {
+			if (permits != null)
+				permits.release();
+		}
+	}
+
+	private int run(Call call) throws FuseException {
+		if (statistics == null)
+			return call.call();
+		statistics.enter();
+		long start = System.nanoTime();
+		try {
+			return call.call();
+		} finally {
+			statistics.leave(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public int getattr(final String path, final FuseGetattrSetter getattrSetter) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.getattr(path, getattrSetter);
+			}
+		});
+	}
+
+	@Override
+	public int readlink(final String path, final CharBuffer link) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.readlink(path, link);
+			}
+		});
+	}
+
+	@Override
+	public int getdir(final String path, final FuseDirFiller dirFiller) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.getdir(path, dirFiller);
+			}
+		});
+	}
+
+	@Override
+	public int mknod(final String path, final int mode, final int rdev) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.mknod(path, mode, rdev);
+			}
+		});
+	}
+
+	@Override
+	public int mkdir(final String path, final int mode) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.mkdir(path, mode);
+			}
+		});
+	}
+
+	@Override
+	public int unlink(final String path) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.unlink(path);
+			}
+		});
+	}
+
+	@Override
+	public int rmdir(final String path) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.rmdir(path);
+			}
+		});
+	}
+
+	@Override
+	public int symlink(final String from, final String to) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.symlink(from, to);
+			}
+		});
+	}
+
+	@Override
+	public int rename(final String from, final String to) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.rename(from, to);
+			}
+		});
+	}
+
+	@Override
+	public int link(final String from, final String to) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.link(from, to);
+			}
+		});
+	}
+
+	@Override
+	public int chmod(final String path, final int mode) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.chmod(path, mode);
+			}
+		});
+	}
+
+	@Override
+	public int chown(final String path, final int uid, final int gid) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.chown(path, uid, gid);
+			}
+		});
+	}
+
+	@Override
+	public int truncate(final String path, final long size) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.truncate(path, size);
+			}
+		});
+	}
+
+	@Override
+	public int utime(final String path, final int atime, final int mtime) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.utime(path, atime, mtime);
+			}
+		});
+	}
+
+	@Override
+	public int statfs(final FuseStatfsSetter statfsSetter) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.statfs(statfsSetter);
+			}
+		});
+	}
+
+	@Override
+	public int open(final String path, final int flags, final FuseOpenSetter openSetter) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.open(path, flags, openSetter);
+			}
+		});
+	}
+
+	@Override
+	public int read(final String path, final Object fh, final ByteBuffer buf, final long offset) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.read(path, fh, buf, offset);
+			}
+		});
+	}
+
+	@Override
+	public int write(final String path, final Object fh, final boolean isWritepage, final ByteBuffer buf, final long offset) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.write(path, fh, isWritepage, buf, offset);
+			}
+		});
+	}
+
+	@Override
+	public int flush(final String path, final Object fh) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.flush(path, fh);
+			}
+		});
+	}
+
+	@Override
+	public int release(final String path, final Object fh, final int flags) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.release(path, fh, flags);
+			}
+		});
+	}
+
+	@Override
+	public int fsync(final String path, final Object fh, final boolean isDatasync) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.fsync(path, fh, isDatasync);
+			}
+		});
+	}
+
+	@Override
+	public int getxattrsize(final String path, final String name, final FuseSizeSetter sizeSetter) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.getxattrsize(path, name, sizeSetter);
+			}
+		});
+	}
+
+	@Override
+	public int getxattr(final String path, final String name, final ByteBuffer dst, final int position) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.getxattr(path, name, dst, position);
+			}
+		});
+	}
+
+	@Override
+	public int listxattr(final String path, final XattrLister lister) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.listxattr(path, lister);
+			}
+		});
+	}
+
+	@Override
+	public int setxattr(final String path, final String name, final ByteBuffer value, final int flags, final int position) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.setxattr(path, name, value, flags, position);
+			}
+		});
+	}
+
+	@Override
+	public int removexattr(final String path, final String name) throws FuseException {
+		return dispatch(new Call() {
+			@Override
+			int call() throws FuseException {
+				return fs.removexattr(path, name);
+			}
+		});
+	}
+}
@@ -4,6 +4,7 @@ import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 
+import jfilesyslib.data.DirectoryEntry;
 import jfilesyslib.data.DirectoryInfo;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.ExtendedAttribute;
@@ -42,11 +43,20 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 
 	public static final String INITIALFILENAME = "/.INITIALFILENAME____$"; 
 	private MountOptions options;
+	private final InodeTable inodes;
 	
 	
 	public FuseWrapper(FileSystem fileSystem, MountOptions options) {
 		this.fileSystem = fileSystem;
 		this.options = options;
+		this.inodes = new InodeTable(fileSystem.isCaseSensitive());
+	}
+	
+	private long getInode(String path, EntityInfo entity) {
+		long inode = fileSystem.getInodeNumber(entity);
+		if (inode != 0)
+			return inode;
+		return inodes.getInode(path);
 	}
 
 	@Override
@@ -66,14 +76,15 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 			if (entity == null)
 				System.err.println("Your file system returned null for getFileMetaData(" + path + ")");
 			
-			UnixPermissions perms = fileSystem.getUnixPermissions(path);
+			// the file system may return the permissions it has read along with the entry
+			UnixPermissions perms = entity != null ? fileSystem.getUnixPermissions(entity) : fileSystem.getUnixPermissions(path);
 			if ((path.equals("/") && options.isUnixOwnerImpersonateNewFiles()) || options.isUnixOwnerImpersonateAllFiles())
 			{
 				perms.setUid(Environment.getUserId());
 				perms.setGid(Environment.getGroupId());
 			}
 
-			int inode = entity.hashCode();
+			long inode = getInode(path, entity);
 			int nlink = 1;
 			int uid = perms.getUid();
 			int gid = perms.getGid();
@@ -90,8 +101,12 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 			{
 				DirectoryInfo info = (DirectoryInfo)entity;
 				int BLOCK_SIZE = fileSystem.getBlockSize();
-				int filesInDir = fileSystem.getNumberOfFilesInDirectory(info);
-				long dirsizeBlock = filesInDir * fileSystem.getMaxPathLength();
+				long dirsizeBlock = options.getConstantDirectorySize();
+				if (dirsizeBlock < 0)
+				{
+					int filesInDir = fileSystem.getNumberOfFilesInDirectory(info);
+					dirsizeBlock = (long)filesInDir * fileSystem.getMaxPathLength();
+				}
 				getattrSetter.set(inode, FuseFtypeConstants.TYPE_DIR | perms.getPermissions(), nlink, uid, gid, rdev, dirsizeBlock, (dirsizeBlock + BLOCK_SIZE - 1) / BLOCK_SIZE,
 						(int)info.getLastAccessTime(), (int)info.getLastModificationTime(), (int)info.getCreationTime());
 				
@@ -126,11 +141,11 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 
 	@Override
 	public int getdir(String path, FuseDirFiller dirFiller) throws FuseException {
-		Iterable<EntityInfo> iterator;
+		Iterable<DirectoryEntry> iterator;
 		try {
-			iterator = fileSystem.listDirectory(path);
+			iterator = fileSystem.listDirectoryWithAttributes(path, true, false);
 			if (iterator == null)
-				System.err.println("Your file system returned null for readDirectory(" + path + ")");
+				System.err.println("Your file system returned null for listDirectoryWithAttributes(" + path + ")");
 		} catch (PathNotFoundException e) {
 			return Errno.ENOENT;
 		} catch (AccessDeniedException e) {
@@ -140,16 +155,10 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 		}
         dirFiller.add(".", 0, 0);
         dirFiller.add("..", 0, 0);
-		for (EntityInfo info : iterator)
+		for (DirectoryEntry entry : iterator)
 		{
-			UnixPermissions perms;
-			try {
-				perms = fileSystem.getUnixPermissions(info.getFullPath());
-			} catch (PathNotFoundException e) {
-				System.err.println("readDirectory and getUnixPermissions inconsistent for " + info.getFullPath());
-				e.printStackTrace();
-				continue;
-			}
+			EntityInfo info = entry.getInfo();
+			UnixPermissions perms = entry.getUnixPermissions();
 			int mode = 0;
 			
 			if (FileInfo.class.isInstance(info))
@@ -166,7 +175,7 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 			
 			mode |= perms.getPermissions();
 			
-            dirFiller.add(info.getFileName(), info.hashCode(), mode);
+            dirFiller.add(info.getFileName(), getInode(info.getFullPath(), info), mode);
 		}
 		return 0;
 	}
@@ -232,6 +241,7 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 		} catch (PathNotFoundException e) {
 			return Errno.EINVAL;
 		}
+		inodes.remove(path);
 		return 0;
 	}
 
@@ -246,6 +256,7 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 		} catch (PathNotFoundException e) {
 			return Errno.EINVAL;
 		}
+		inodes.remove(path);
 		return 0;
 	}
 
@@ -285,6 +296,7 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 		} catch (AccessDeniedException e) {
 			return Errno.EACCES;
 		}
+		inodes.rename(from, to);
 		return 0;
 	}
 
@@ -416,7 +428,8 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 			handle.read = read;
 			handle.write = write;
 			openSetter.setFh(handle);
-			handle.isEmptyFile = (((FileInfo)entity).getFileSize() == 0); 
+			openSetter.setDirectIO(handle.isDirectIO());
+			openSetter.setKeepCache(handle.isKeepCache());
 			//openSetter.setFh(new FileHandle(node));
 		} catch (PathNotFoundException e) {
 			return Errno.ENOENT;
@@ -436,11 +449,16 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 			return Errno.EBADSLT;
 		if (handle.hasClosed)
 			return Errno.EBADSLT;
-		if (handle.isEmptyFile)
-			return 0;
 		if (!handle.read)
 			return Errno.EACCES;
-		/*int read = */fileSystem.read(handle, buf, offset);
+		//The native glue takes the number of read bytes from the buffer position
+		int start = buf.position();
+		int read = fileSystem.read(handle, buf, offset);
+		if (read < 0)
+			read = 0;
+		else if (read > buf.limit() - start)
+			read = buf.limit() - start;
+		buf.position(start + read);
 		return 0;
 	}
 
@@ -454,7 +472,6 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 			return Errno.EBADSLT;
 		if (!handle.write)
 			return Errno.EACCES;
-		handle.isEmptyFile = false;
 		try {
 			fileSystem.write(handle, buf, offset);
 		} catch (DriveFullException e) {
@@ -504,6 +521,18 @@ class FuseWrapper implements Filesystem3, XattrSupport {
 	@Override
 	public int fsync(String path, Object fh, boolean isDatasync)
 			throws FuseException {
+		FileHandle handle = (FileHandle)fh;
+		if (handle == null)
+			return Errno.EBADSLT;
+		if (handle.hasClosed)
+			return Errno.EBADSLT;
+		if (!handle.write)
+			return 0;
+		try {
+			fileSystem.fsync(handle, isDatasync);
+		} catch (DriveFullException e) {
+			return Errno.ENOSPC;
+		}
 		return 0;
 	}
 
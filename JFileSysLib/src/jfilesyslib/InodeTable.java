@@ -0,0 +1,143 @@
+package jfilesyslib;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+
+/**
+ * Assigns inode numbers to paths, for file systems which do not supply their own.<br>
+ * A path keeps its number as long as it exists and has been used recently; renaming moves the numbers of the whole subtree along.
+ * The table holds a limited number of paths: if it is full, the least recently used path is forgotten
+ * and gets a new number when it is used again, since the native layer does not report when the kernel forgets an inode.<br>
+ * Numbers are never reused while the table exists, so the counter acts as a generation number:
+ * a number which has been handed out once never refers to another file later on.<br>
+ * Except for the root, the numbers start at {@link #FIRSTINODE}, so they do not collide with the numbers of a file system,
+ * which supplies numbers for some of its entries only.<br>
+ * It is <i>thread safe</i>.
+ * @author Marc Miltenberger
+ */
+class InodeTable {
+	/**
+	 * The inode number of the root directory
+	 */
+	public static final long ROOTINODE = 1;
+	/**
+	 * The first number assigned by the table; file systems should supply smaller numbers
+	 */
+	public static final long FIRSTINODE = 1L << 62;
+	/**
+	 * The default number of paths the table holds
+	 */
+	public static final int DEFAULTCAPACITY = 1 << 16;
+	// in the order of their last use
+	private final LinkedHashMap<String, Long> inodes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	// the same paths, sorted to find subtrees
+	private final TreeSet<String> paths = new TreeSet<String>();
+	private final boolean caseSensitive;
+	private final int capacity;
+	private long nextInode = FIRSTINODE;
+
+	/**
+	 * Creates a new table, which holds {@link #DEFAULTCAPACITY} paths
+	 * @param caseSensitive whether paths which only differ in case refer to different entries
+	 */
+	public InodeTable(boolean caseSensitive) {
+		this(caseSensitive, DEFAULTCAPACITY);
+	}
+
+	/**
+	 * Creates a new table
+	 * @param caseSensitive whether paths which only differ in case refer to different entries
+	 * @param capacity the number of paths the table holds
+	 */
+	public InodeTable(boolean caseSensitive, int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity has to be positive");
+		this.caseSensitive = caseSensitive;
+		this.capacity = capacity;
+	}
+
+	private String getKey(String path) {
+		return caseSensitive ? path : path.toLowerCase(Locale.ENGLISH);
+	}
+
+	// the paths below the path, which start with path + "/"; '0' follows '/'
+	private SortedSet<String> getSubtree(String key) {
+		return paths.subSet(key + "/", key + "0");
+	}
+
+	private void put(String key, Long inode) {
+		inodes.put(key, inode);
+		paths.add(key);
+		if (inodes.size() > capacity)
+		{
+			Iterator<String> eldest = inodes.keySet().iterator();
+			paths.remove(eldest.next());
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Returns the inode number of the path and assigns a new one if the path has none yet
+	 * @param path the path
+	 * @return the inode number
+	 */
+	public synchronized long getInode(String path) {
+		if (path.equals("/"))
+			return ROOTINODE;
+		String key = getKey(path);
+		Long inode = inodes.get(key);
+		if (inode == null)
+		{
+			inode = nextInode++;
+			put(key, inode);
+		}
+		return inode;
+	}
+
+	/**
+	 * Moves the inode numbers of the entry and everything below it to the new path
+	 * @param from the old path
+	 * @param to the new path
+	 */
+	public synchronized void rename(String from, String to) {
+		String fromKey = getKey(from);
+		String toKey = getKey(to);
+		removeKey(toKey);
+		SortedSet<String> subtree = getSubtree(fromKey);
+		List<Map.Entry<String, Long>> moved = new ArrayList<Map.Entry<String, Long>>(subtree.size());
+		for (String key : subtree)
+			moved.add(new AbstractMap.SimpleEntry<String, Long>(toKey + key.substring(fromKey.length()), inodes.remove(key)));
+		subtree.clear();
+		for (Map.Entry<String, Long> entry : moved)
+			put(entry.getKey(), entry.getValue());
+		Long inode = inodes.remove(fromKey);
+		paths.remove(fromKey);
+		if (inode != null)
+			put(toKey, inode);
+	}
+
+	/**
+	 * Forgets the inode numbers of the entry and everything below it
+	 * @param path the path
+	 */
+	public synchronized void remove(String path) {
+		removeKey(getKey(path));
+	}
+
+	private void removeKey(String key) {
+		inodes.remove(key);
+		paths.remove(key);
+		SortedSet<String> subtree = getSubtree(key);
+		for (String sub : subtree)
+			inodes.remove(sub);
+		subtree.clear();
+	}
+}
@@ -1,5 +1,9 @@
 package jfilesyslib;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * Contains some common mount options
  * @author Marc Miltenberger
@@ -12,6 +16,20 @@ public class MountOptions {
 	private boolean UnixOwnerImpersonateAllFiles = false;
 	private boolean MacOSXLocal = false;
 	private int threadCount = 1;
+	// whether the thread count has been set; otherwise FUSE keeps its own thread model
+	private boolean threadCountSet = false;
+	private Executor callbackExecutor = null;
+	private boolean threadStatistics = false;
+	private long constantDirectorySize = -1;
+	private double attributeTimeout = -1;
+	private double entryTimeout = -1;
+	private double negativeTimeout = -1;
+	private boolean kernelCache = false;
+	private boolean autoCache = false;
+	private boolean bigWrites = false;
+	private int maxWrite = -1;
+	private int maxRead = -1;
+	private int maxReadahead = -1;
 
 	/**
 	 * Returns the drive type (supported only on Windows)<p>
@@ -90,19 +108,340 @@ public class MountOptions {
 	}
 
 	/**
-	 * Returns the number of threads used for the file system
+	 * Returns the number of threads used for the file system<br>
+	 * On Unix, FUSE keeps its own thread model unless the thread count has been set.<p>
+	 * The default value is <i>1</i>.
 	 * @return the thread count
+	 * @see #setThreadCount(int)
 	 */
 	public int getThreadCount() {
 		return threadCount;
 	}
 
 	/**
-	 * Sets the number of threads to use 
+	 * Sets the number of threads to use<br>
+	 * On Unix, 1 runs the FUSE loop single threaded and zero or a negative value leaves the number of threads to FUSE.
+	 * A larger value only bounds the number of concurrent calls to the file system:
+	 * FUSE still starts a thread for every request it receives while all of its threads are busy,
+	 * since the bundled native library uses libfuse 2, which has no option to limit them.
+	 * The surplus threads wait until a call has returned.
+	 * Bounding the calls allocates a small object for every call, as do the callback executor and the thread statistics.
+	 * On Windows, zero or a negative value uses a single thread.<p>
+	 * The default value is <i>1</i>, which FUSE ignores unless it has been set explicitly.
 	 * @param threadCount the thread count
 	 */
 	public void setThreadCount(int threadCount) {
 		this.threadCount = threadCount;
+		this.threadCountSet = true;
+	}
+
+	/**
+	 * Returns whether the thread count has been set explicitly
+	 * @return whether the thread count has been set
+	 */
+	boolean isThreadCountSet() {
+		return threadCountSet;
+	}
+
+	/**
+	 * Returns the executor, which runs the calls to the file system (supported only on Unix)<br>
+	 * If it is null, the calls are run by the FUSE threads.<p>
+	 * The default value is <i>null</i>.
+	 * @return the executor or null
+	 */
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	/**
+	 * Sets the executor, which runs the calls to the file system (supported only on Unix)<br>
+	 * The FUSE thread waits until the executor has run the call, so the executor decides which threads
+	 * touch the file system, e.g. a single thread for a backend which is not thread safe or virtual threads.
+	 * Every call allocates a task, which is handed to the executor.<br>
+	 * If it is null, the calls are run by the FUSE threads.<p>
+	 * The default value is <i>null</i>.
+	 * @param callbackExecutor the executor or null
+	 */
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+	}
+
+	/**
+	 * Returns whether statistics about the calling threads are collected (supported only on Unix)<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @return whether thread statistics are collected
+	 * @see FileSystem#getCallbackStatistics()
+	 */
+	public boolean isThreadStatistics() {
+		return threadStatistics;
+	}
+
+	/**
+	 * Sets whether statistics about the calling threads are collected (supported only on Unix)<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @param threadStatistics whether thread statistics should be collected
+	 * @see FileSystem#getCallbackStatistics()
+	 */
+	public void setThreadStatistics(boolean threadStatistics) {
+		this.threadStatistics = threadStatistics;
+	}
+
+	/**
+	 * Returns the size reported for every directory.<br>
+	 * If it is negative, the size is computed from the number of entries in the directory, which has to be counted for every stat.<p>
+	 * The default value is <i>-1</i>.
+	 * @return the directory size in bytes or a negative value
+	 */
+	public long getConstantDirectorySize() {
+		return constantDirectorySize;
+	}
+
+	/**
+	 * Sets the size reported for every directory, so the entries of a directory need not be counted for every stat (supported only on Unix)<br>
+	 * If it is negative, the size is computed from the number of entries in the directory.<p>
+	 * The default value is <i>-1</i>.
+	 * @param constantDirectorySize the directory size in bytes, e.g. 4096, or a negative value
+	 */
+	public void setConstantDirectorySize(long constantDirectorySize) {
+		this.constantDirectorySize = constantDirectorySize;
+	}
+
+	/**
+	 * Returns the time in seconds the kernel caches the attributes of files and directories (supported only on Unix)<br>
+	 * If it is negative, the FUSE default (1 second) is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @return the attribute timeout in seconds or a negative value
+	 */
+	public double getAttributeTimeout() {
+		return attributeTimeout;
+	}
+
+	/**
+	 * Sets the time in seconds the kernel caches the attributes of files and directories (supported only on Unix)<br>
+	 * If it is negative, the FUSE default (1 second) is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @param attributeTimeout the attribute timeout in seconds or a negative value
+	 */
+	public void setAttributeTimeout(double attributeTimeout) {
+		checkTimeout(attributeTimeout);
+		this.attributeTimeout = attributeTimeout;
+	}
+
+	/**
+	 * Returns the time in seconds the kernel caches the result of a name lookup (supported only on Unix)<br>
+	 * If it is negative, the FUSE default (1 second) is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @return the entry timeout in seconds or a negative value
+	 */
+	public double getEntryTimeout() {
+		return entryTimeout;
+	}
+
+	/**
+	 * Sets the time in seconds the kernel caches the result of a name lookup (supported only on Unix)<br>
+	 * If it is negative, the FUSE default (1 second) is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @param entryTimeout the entry timeout in seconds or a negative value
+	 */
+	public void setEntryTimeout(double entryTimeout) {
+		checkTimeout(entryTimeout);
+		this.entryTimeout = entryTimeout;
+	}
+
+	/**
+	 * Returns the time in seconds the kernel caches a failed name lookup (supported only on Unix)<br>
+	 * If it is negative, the FUSE default (0 seconds) is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @return the negative timeout in seconds or a negative value
+	 */
+	public double getNegativeTimeout() {
+		return negativeTimeout;
+	}
+
+	/**
+	 * Sets the time in seconds the kernel caches a failed name lookup (supported only on Unix)<br>
+	 * If it is negative, the FUSE default (0 seconds) is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @param negativeTimeout the negative timeout in seconds or a negative value
+	 */
+	public void setNegativeTimeout(double negativeTimeout) {
+		checkTimeout(negativeTimeout);
+		this.negativeTimeout = negativeTimeout;
+	}
+
+	/**
+	 * Returns whether the kernel keeps the cached content of a file when it is opened again (supported only on Unix)<br>
+	 * This should only be used if the content cannot change without the kernel knowing it.<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @return whether the kernel_cache option is set
+	 */
+	public boolean isKernelCache() {
+		return kernelCache;
+	}
+
+	/**
+	 * Sets whether the kernel keeps the cached content of a file when it is opened again (supported only on Unix)<br>
+	 * This should only be used if the content cannot change without the kernel knowing it.<p>
+	 * It cannot be combined with auto_cache.<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @param kernelCache whether the kernel_cache option should be set
+	 */
+	public void setKernelCache(boolean kernelCache) {
+		if (kernelCache && autoCache)
+			throw new IllegalArgumentException("kernel_cache and auto_cache cannot be used together");
+		this.kernelCache = kernelCache;
+	}
+
+	/**
+	 * Returns whether the kernel drops the cached content of a file when its modification time or size has changed on open (supported only on Unix)<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @return whether the auto_cache option is set
+	 */
+	public boolean isAutoCache() {
+		return autoCache;
+	}
+
+	/**
+	 * Sets whether the kernel drops the cached content of a file when its modification time or size has changed on open (supported only on Unix)<br>
+	 * It cannot be combined with kernel_cache.<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @param autoCache whether the auto_cache option should be set
+	 */
+	public void setAutoCache(boolean autoCache) {
+		if (autoCache && kernelCache)
+			throw new IllegalArgumentException("kernel_cache and auto_cache cannot be used together");
+		this.autoCache = autoCache;
+	}
+
+	/**
+	 * Returns whether the kernel may write more than 4 KiB at once (supported only on Linux)<br>
+	 * It is turned on anyway if the maximum write size is larger than 4 KiB.<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @return whether the big_writes option is set
+	 */
+	public boolean isBigWrites() {
+		return bigWrites;
+	}
+
+	/**
+	 * Sets whether the kernel may write more than 4 KiB at once (supported only on Linux)<p>
+	 * This feature is turned <i>off</i> by default.
+	 * @param bigWrites whether the big_writes option should be set
+	 */
+	public void setBigWrites(boolean bigWrites) {
+		this.bigWrites = bigWrites;
+	}
+
+	/**
+	 * Returns the maximum size of a single write request in bytes (supported only on Unix)<br>
+	 * If it is negative, the FUSE default is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @return the maximum write size or a negative value
+	 */
+	public int getMaxWrite() {
+		return maxWrite;
+	}
+
+	/**
+	 * Sets the maximum size of a single write request in bytes (supported only on Unix)<br>
+	 * If it is negative, the FUSE default is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @param maxWrite the maximum write size or a negative value
+	 */
+	public void setMaxWrite(int maxWrite) {
+		checkSize(maxWrite);
+		this.maxWrite = maxWrite;
+	}
+
+	/**
+	 * Returns the maximum size of a single read request in bytes (supported only on Unix)<br>
+	 * If it is negative, the FUSE default is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @return the maximum read size or a negative value
+	 */
+	public int getMaxRead() {
+		return maxRead;
+	}
+
+	/**
+	 * Sets the maximum size of a single read request in bytes (supported only on Unix)<br>
+	 * If it is negative, the FUSE default is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @param maxRead the maximum read size or a negative value
+	 */
+	public void setMaxRead(int maxRead) {
+		checkSize(maxRead);
+		this.maxRead = maxRead;
+	}
+
+	/**
+	 * Returns the maximum number of bytes the kernel reads ahead (supported only on Unix)<br>
+	 * If it is negative, the FUSE default is used.<p>
+	 * The default value is <i>-1</i>.
+	 * @return the maximum readahead or a negative value
+	 */
+	public int getMaxReadahead() {
+		return maxReadahead;
+	}
+
+	/**
+	 * Sets the maximum number of bytes the kernel reads ahead (supported only on Unix)<br>
+	 * Zero turns the readahead off. If it is negative, the FUSE default is used.
+	 * Otherwise, it has to be at least 4096, since the kernel reads ahead whole pages.<p>
+	 * The default value is <i>-1</i>.
+	 * @param maxReadahead the maximum readahead or a negative value
+	 */
+	public void setMaxReadahead(int maxReadahead) {
+		if (maxReadahead > 0 && maxReadahead < 4096)
+			throw new IllegalArgumentException("The readahead (" + maxReadahead + ") should be zero or at least 4096 bytes");
+		this.maxReadahead = maxReadahead;
+	}
+
+	private static void checkTimeout(double timeout) {
+		if (Double.isNaN(timeout) || Double.isInfinite(timeout))
+			throw new IllegalArgumentException("The timeout (" + timeout + ") should be a finite number of seconds");
+	}
+
+	private static void checkSize(int size) {
+		if (size == 0)
+			throw new IllegalArgumentException("The size should be positive or negative for the default value");
+	}
+
+	/**
+	 * Returns the FUSE arguments for the caching options
+	 * @return the arguments
+	 */
+	List<String> getFuseArguments() {
+		List<String> options = new ArrayList<String>();
+		// FuseWrapper reports an inode number for every entry, either the file system's or one of its own
+		options.add("use_ino");
+		options.add("readdir_ino");
+		if (attributeTimeout >= 0)
+			options.add("attr_timeout=" + attributeTimeout);
+		if (entryTimeout >= 0)
+			options.add("entry_timeout=" + entryTimeout);
+		if (negativeTimeout >= 0)
+			options.add("negative_timeout=" + negativeTimeout);
+		if (kernelCache)
+			options.add("kernel_cache");
+		if (autoCache)
+			options.add("auto_cache");
+		if (Environment.isUnix() && (bigWrites || maxWrite > 4096))
+			options.add("big_writes");
+		if (maxWrite > 0)
+			options.add("max_write=" + maxWrite);
+		if (maxRead > 0)
+			options.add("max_read=" + maxRead);
+		if (maxReadahead >= 0)
+			options.add("max_readahead=" + maxReadahead);
+
+		List<String> arguments = new ArrayList<String>(options.size() * 2);
+		for (String option : options)
+		{
+			arguments.add("-o");
+			arguments.add(option);
+		}
+		return arguments;
 	}
 
 	/**
@@ -7,7 +7,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -17,6 +19,7 @@ import net.decasdev.dokan.DokanOptions;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import fuse.Filesystem3;
 import fuse.FuseMount;
 
 /**
@@ -181,7 +184,7 @@ public final class Mounter {
 			final DokanOptions doptions = new DokanOptions();
 			doptions.mountPoint = mountPath.getAbsolutePath();
 			doptions.optionsMode = DOKAN_OPTION_KEEP_ALIVE;
-			doptions.threadCount = options.getThreadCount();
+			doptions.threadCount = options.getThreadCount() > 0 ? options.getThreadCount() : 1;
 			switch (options.getDrivetype())
 			{
 				case NETWORK_SHARE:
@@ -254,6 +257,40 @@ public final class Mounter {
 			if (!mountPath.canWrite())
 				return false;
 			final FuseWrapper wrapper = new FuseWrapper(cfileSystem, options);
+			final List<String> fuseArguments = new ArrayList<String>();
+			fuseArguments.add(cfileSystem.getFileSystemName());
+			fuseArguments.add(mountPath.getAbsolutePath());
+			fuseArguments.add("-f");
+			// libfuse 2 has no option to limit its threads; they are only bounded by the dispatcher
+			int threadCount = options.isThreadCountSet() ? options.getThreadCount() : 0;
+			if (threadCount == 1)
+				fuseArguments.add("-s");
+			if (Environment.isUnix())
+			{
+				fuseArguments.add("-o");
+				fuseArguments.add("nonempty");
+			}
+			else
+			{
+				fuseArguments.add("-o");
+				fuseArguments.add("volname=" + cfileSystem.getVolumeName());
+				fuseArguments.add("-o");
+				fuseArguments.add("fsname=" + cfileSystem.getFileSystemName());
+				if (options.isMacOSXLocal())
+				{
+					fuseArguments.add("-o");
+					fuseArguments.add("local");
+				}
+			}
+			fuseArguments.addAll(options.getFuseArguments());
+
+			final Filesystem3 fuseFileSystem;
+			CallbackStatistics statistics = options.isThreadStatistics() ? new CallbackStatistics() : null;
+			cfileSystem.callbackStatistics = statistics;
+			if (threadCount > 1 || options.getCallbackExecutor() != null || statistics != null)
+				fuseFileSystem = new FuseDispatcher(wrapper, threadCount > 1 ? threadCount : 0, options.getCallbackExecutor(), statistics);
+			else
+				fuseFileSystem = wrapper;
 			String path, filename;
 			if (Environment.isMac())
 			{
@@ -321,17 +358,7 @@ public final class Mounter {
 					try {
 						cfileSystem.beforeMounting(mountPath.getAbsolutePath());
 						Log l = LogFactory.getLog("Mounter");
-						if (Environment.isUnix())
-							FuseMount.mount(new String[] { cfileSystem.getFileSystemName(), mountPath.getAbsolutePath(), "-f", "-o", "nonempty" }, wrapper, l);
-						else
-						{
-							String[] mountOptions;
-							if (options.isMacOSXLocal())
-								mountOptions = new String[] { cfileSystem.getFileSystemName(), mountPath.getAbsolutePath(), "-f", "-o", "volname=" + cfileSystem.getVolumeName(), "-o", "fsname=" + cfileSystem.getFileSystemName(), "-o", "local" };
-							else
-								mountOptions = new String[] { cfileSystem.getFileSystemName(), mountPath.getAbsolutePath(), "-f", "-o", "volname=" + cfileSystem.getVolumeName(), "-o", "fsname=" + cfileSystem.getFileSystemName() };
-							FuseMount.mount(mountOptions, wrapper, l);
-						}
+						FuseMount.mount(fuseArguments.toArray(new String[fuseArguments.size()]), fuseFileSystem, l);
 					} catch (Exception e) {
 						e.printStackTrace();
 					}
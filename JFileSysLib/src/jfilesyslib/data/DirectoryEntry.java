@@ -0,0 +1,48 @@
+package jfilesyslib.data;
+
+/**
+ * An entry of a directory listing together with its attributes
+ * @author Marc Miltenberger
+ */
+public class DirectoryEntry {
+	private final EntityInfo info;
+	private final UnixPermissions unixPermissions;
+	private final WindowsAttributes windowsAttributes;
+	
+	/**
+	 * Creates a new DirectoryEntry object.
+	 * @param info the file, directory or symbolic link with its size and times
+	 * @param unixPermissions the unix permissions or null if they have not been requested
+	 * @param windowsAttributes the windows attributes or null if they have not been requested or are not supported
+	 */
+	public DirectoryEntry(EntityInfo info, UnixPermissions unixPermissions, WindowsAttributes windowsAttributes)
+	{
+		this.info = info;
+		this.unixPermissions = unixPermissions;
+		this.windowsAttributes = windowsAttributes;
+	}
+
+	/**
+	 * Returns the file, directory or symbolic link
+	 * @return the entity info
+	 */
+	public EntityInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * Returns the unix permissions
+	 * @return the unix permissions or null if they have not been requested
+	 */
+	public UnixPermissions getUnixPermissions() {
+		return unixPermissions;
+	}
+
+	/**
+	 * Returns the windows attributes
+	 * @return the windows attributes or null if they have not been requested or are not supported
+	 */
+	public WindowsAttributes getWindowsAttributes() {
+		return windowsAttributes;
+	}
+}
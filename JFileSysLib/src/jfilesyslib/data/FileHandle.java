@@ -12,7 +12,9 @@ public class FileHandle {
 	/**
 	 * Whether the file was empty<br>
 	 * Should not be used by your file system.
+	 * @deprecated it is not maintained any more, the file may have grown through another handle
 	 */
+	@Deprecated
 	public boolean isEmptyFile;
 	
 	/**
@@ -33,6 +35,9 @@ public class FileHandle {
 	 */
 	public boolean hasClosed = false;
 	
+	private boolean directIO = false;
+	private boolean keepCache = false;
+	
 	/**
 	 * Creates a new FileHandle object
 	 * @param filePath the file path
@@ -75,4 +80,40 @@ public class FileHandle {
 	public void setObjHandle(Object objHandle) {
 		this.objHandle = objHandle;
 	}
+
+	/**
+	 * Returns whether the kernel should bypass its page cache for this handle (supported only on Unix)
+	 * @return whether direct_io is requested
+	 */
+	public boolean isDirectIO() {
+		return directIO;
+	}
+
+	/**
+	 * Sets whether the kernel should bypass its page cache for this handle (supported only on Unix)<br>
+	 * Useful for streamed or generated content, which should not fill the page cache.<br>
+	 * Has to be set in openFile.
+	 * @param directIO whether direct_io is requested
+	 */
+	public void setDirectIO(boolean directIO) {
+		this.directIO = directIO;
+	}
+
+	/**
+	 * Returns whether the kernel may keep the cached content of the file when it is opened (supported only on Unix)
+	 * @return whether keep_cache is requested
+	 */
+	public boolean isKeepCache() {
+		return keepCache;
+	}
+
+	/**
+	 * Sets whether the kernel may keep the cached content of the file when it is opened (supported only on Unix)<br>
+	 * This should only be set if the content has not been changed except through the mounted file system.<br>
+	 * Has to be set in openFile.
+	 * @param keepCache whether keep_cache is requested
+	 */
+	public void setKeepCache(boolean keepCache) {
+		this.keepCache = keepCache;
+	}
 }
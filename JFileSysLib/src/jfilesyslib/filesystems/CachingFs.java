@@ -8,6 +8,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import jfilesyslib.FileSystem;
 import jfilesyslib.FullFileSystem;
+import jfilesyslib.data.DirectoryEntry;
+import jfilesyslib.data.DirectoryInfo;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.ExtendedAttribute;
 import jfilesyslib.data.FileHandle;
@@ -148,24 +150,27 @@ public class CachingFs extends FullFileSystem {
 	@Override
 	public int read(FileHandle fh, ByteBuffer buffer, long offset) {
 		ReadCacheEntry entry = this.readcache.get(fh);
+		int length = buffer.remaining();
 		if (entry.isValid)
 		{
 			int offsetInCache = (int)(offset - entry.position);
-			if (offsetInCache >= 0 && offset + buffer.limit() < entry.position + entry.validUntil)
+			if (offsetInCache >= 0 && offset + length < entry.position + entry.validUntil)
 			{
 				if (PRINTDEBUG)
 					System.out.println("Cache hit");
-				buffer.put(entry.cacheContent, offsetInCache, buffer.limit());
-				return buffer.limit();
+				buffer.put(entry.cacheContent, offsetInCache, length);
+				return length;
 			}
 		}
-		if (buffer.limit() < CacheSize)
+		if (length < CacheSize)
 		{
 			if (PRINTDEBUG)
 				System.out.println("Cache miss");
 			byte[] cache = new byte[CacheSize];
 			ByteBuffer cbuffer = ByteBuffer.wrap(cache);
 			int read = innerFs.read(fh, cbuffer, offset);
+			if (read < 0)
+				read = 0;
 			int lengthRead;
 			
 			entry.cacheContent = cache;
@@ -173,8 +178,8 @@ public class CachingFs extends FullFileSystem {
 			entry.validUntil = read;
 			if (read > 0)
 				entry.isValid = true;
-			if (read > buffer.limit())
-				lengthRead = buffer.limit();
+			if (read > length)
+				lengthRead = length;
 			else
 				lengthRead = read;
 			
@@ -268,6 +273,15 @@ public class CachingFs extends FullFileSystem {
 		innerFs.flush(fh);
 	}
 
+	@Override
+	public void fsync(FileHandle fh, boolean dataOnly) throws DriveFullException {
+		try {
+			flushWrite(fh);
+		} catch (PartIsLockedException e) {
+		}
+		innerFs.fsync(fh, dataOnly);
+	}
+
 
 	@Override
 	public void close(FileHandle fh) throws DriveFullException {
@@ -293,6 +307,12 @@ public class CachingFs extends FullFileSystem {
 		return innerFs.listDirectory(path);
 	}
 
+	@Override
+	public Iterable<DirectoryEntry> listDirectoryWithAttributes(String path, boolean unixPermissions, boolean windowsAttributes)
+			throws NotADirectoryException, PathNotFoundException, AccessDeniedException {
+		return innerFs.listDirectoryWithAttributes(path, unixPermissions, windowsAttributes);
+	}
+
 	@Override
 	public EntityInfo getFileMetaData(String path) throws PathNotFoundException {
 		return innerFs.getFileMetaData(path);
@@ -375,6 +395,16 @@ public class CachingFs extends FullFileSystem {
 		return innerFs.getTotalFilesCount();
 	}
 
+	@Override
+	public long getInodeNumber(EntityInfo info) {
+		return innerFs.getInodeNumber(info);
+	}
+
+	@Override
+	public int getNumberOfFilesInDirectory(DirectoryInfo info) {
+		return innerFs.getNumberOfFilesInDirectory(info);
+	}
+
 	public long getFreeBlockAvailableCount() {
 		long free = innerFs.getFreeBlockAvailableCount() * innerFs.getBlockSize();
 		free /= CacheSize;
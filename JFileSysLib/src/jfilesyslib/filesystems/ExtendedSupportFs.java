@@ -1,13 +1,17 @@
 package jfilesyslib.filesystems;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import jfilesyslib.FileSystem;
 import jfilesyslib.FullFileSystem;
+import jfilesyslib.data.DirectoryEntry;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.ExtendedAttribute;
 import jfilesyslib.data.FileHandle;
@@ -291,6 +295,8 @@ public class ExtendedSupportFs extends FullFileSystem {
 			{
 				FileHandle handle = innerFs.openFile(hardlinks[0], read, write);
 				RedirectedFileHandle dummyHandle = new RedirectedFileHandle(path, handle);
+				//The other links may change the content without the kernel knowing it
+				dummyHandle.setDirectIO(handle.isDirectIO());
 				return dummyHandle;
 			}
 		}
@@ -340,6 +346,19 @@ public class ExtendedSupportFs extends FullFileSystem {
 		innerFs.flush(handle);
 	}
 
+	@Override
+	public void fsync(FileHandle handle, boolean dataOnly) throws DriveFullException {
+		if (hardlinks)
+		{
+			if (RedirectedFileHandle.class.isInstance(handle))
+			{
+				innerFs.fsync(((RedirectedFileHandle)handle).getRedirectedFileHandle(), dataOnly);
+				return;
+			}
+		}
+		innerFs.fsync(handle, dataOnly);
+	}
+
 
 	@Override
 	public void close(FileHandle handle) throws DriveFullException {
@@ -402,6 +421,102 @@ public class ExtendedSupportFs extends FullFileSystem {
 		return new FilterIterableEntityString(new FilterSymlinks(innerFs.listDirectory(path), innerFs, attributeFs), hiddenPrefix);
 	}
 
+	@Override
+	public Iterable<DirectoryEntry> listDirectoryWithAttributes(String path, boolean unixPermissions, boolean windowsAttributes)
+			throws NotADirectoryException, PathNotFoundException, AccessDeniedException {
+		Iterable<DirectoryEntry> innerEntries = innerFs.listDirectoryWithAttributes(path, unixPermissions, false);
+		
+		//The marker files are looked up once per directory instead of once per entry
+		Set<String> markers = new HashSet<String>();
+		if (attributeFs == innerFs)
+		{
+			for (DirectoryEntry entry : innerEntries)
+			{
+				if (entry.getInfo().getFileName().contains(hiddenPrefix))
+					markers.add(entry.getInfo().getFileName());
+			}
+		}
+		else
+		{
+			try {
+				for (EntityInfo info : attributeFs.listDirectory(path))
+				{
+					if (info.getFileName().contains(hiddenPrefix))
+						markers.add(info.getFileName());
+				}
+			} catch (PathNotFoundException e) {
+				//No attributes have been saved in this directory
+			} catch (NotADirectoryException e) {
+			}
+		}
+		
+		List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+		for (DirectoryEntry entry : innerEntries)
+		{
+			EntityInfo info = entry.getInfo();
+			String name = info.getFileName();
+			if (name.contains(hiddenPrefix))
+				continue;
+			String fullPath = info.getFullPath();
+			
+			if (hardlinks && markers.contains(name + hiddenHardLinkMarker))
+			{
+				//The data belongs to another path
+				try {
+					entries.add(new DirectoryEntry(getFileMetaData(fullPath), unixPermissions ? getUnixPermissions(fullPath) : null, windowsAttributes ? getWindowsAttributes(fullPath) : null));
+				} catch (PathNotFoundException e) {
+					//deleted in the meantime
+				} catch (UnsupportedFeatureException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+			
+			boolean symlink = symlinks && markers.contains(name + hiddenSymLinkMarker);
+			if (symlink)
+				info = new SymbolicLinkInfo(fullPath, readSymLinkDestination(fullPath));
+			
+			String[] lines = null;
+			if ((unixPermissions && this.unixPermissions && !symlink) || (windowsAttributes && this.windowsAttributes))
+			{
+				if (markers.contains(name + hiddenPermissions))
+				{
+					try {
+						lines = readPermissionLines(fullPath);
+					} catch (PathNotFoundException e) {
+						//deleted in the meantime
+						continue;
+					}
+				}
+			}
+			
+			UnixPermissions perms = null;
+			if (unixPermissions)
+			{
+				if (symlink)
+					perms = UnixPermissions.DefaultDirectoryPermissions;
+				else
+				{
+					if (this.unixPermissions)
+						perms = parseUnixPermissions(lines);
+					if (perms == null)
+						perms = entry.getUnixPermissions();
+				}
+			}
+			
+			WindowsAttributes attributes = null;
+			if (windowsAttributes)
+			{
+				if (this.windowsAttributes)
+					attributes = parseWindowsAttributes(lines);
+				if (attributes == null)
+					attributes = new WindowsAttributes();
+			}
+			entries.add(new DirectoryEntry(info, perms, attributes));
+		}
+		return entries;
+	}
+
 	@Override
 	public EntityInfo getFileMetaData(String path) throws PathNotFoundException {
 		if (path.contains(hiddenPrefix))
@@ -425,22 +540,71 @@ public class ExtendedSupportFs extends FullFileSystem {
 		if (symlinks)
 		{
 			if (attributeFs.pathExists(getSymLinkPath(path)))
-			{
-				String dest = "";
-				try {
-					dest = FileSystemUtils.readWholeText(attributeFs, getSymLinkPath(path));
-				} catch (PathNotFoundException e) {
-					e.printStackTrace();
-				} catch (AccessDeniedException e) {
-					e.printStackTrace();
-				} catch (NotAFileException e) {
-					e.printStackTrace();
-				}
-				return new SymbolicLinkInfo(path, dest);
-			}
+				return new SymbolicLinkInfo(path, readSymLinkDestination(path));
 		}
 		return innerFs.getFileMetaData(path);
 	}
+	
+	/**
+	 * Reads the destination of an emulated symbolic link
+	 * @param path the path of the symbolic link
+	 * @return the destination or an empty string if it could not be read
+	 */
+	private String readSymLinkDestination(String path) {
+		try {
+			return FileSystemUtils.readWholeText(attributeFs, getSymLinkPath(path));
+		} catch (PathNotFoundException e) {
+			e.printStackTrace();
+		} catch (AccessDeniedException e) {
+			e.printStackTrace();
+		} catch (NotAFileException e) {
+			e.printStackTrace();
+		}
+		return "";
+	}
+	
+	/**
+	 * Reads the permission file, which holds the unix permissions, uid, gid and the windows attributes
+	 * @param path the path, whose hard links have already been resolved
+	 * @return the lines or null if they could not be read
+	 * @throws PathNotFoundException the path does not exist
+	 */
+	private String[] readPermissionLines(String path) throws PathNotFoundException {
+		try {
+			return FileSystemUtils.readLines(attributeFs, getPermissionsPath(path));
+		} catch (AccessDeniedException e) {
+			e.printStackTrace();
+		} catch (NotAFileException e) {
+			e.printStackTrace();
+		} catch (PathNotFoundException e)
+		{
+			if (!innerFs.pathExists(path))
+				throw e;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the unix permissions saved in the permission file
+	 * @param lines the lines of the permission file, may be null
+	 * @return the permissions or null if none have been saved
+	 */
+	private static UnixPermissions parseUnixPermissions(String[] lines) {
+		if (lines == null || lines.length < 3 || lines[0] == null || lines[0].isEmpty())
+			return null;
+		return new UnixPermissions(Integer.valueOf(lines[0]), Integer.valueOf(lines[1]), Integer.valueOf(lines[2]));
+	}
+	
+	/**
+	 * Returns the windows attributes saved in the permission file
+	 * @param lines the lines of the permission file, may be null
+	 * @return the attributes or null if none have been saved
+	 */
+	private static WindowsAttributes parseWindowsAttributes(String[] lines) {
+		if (lines == null || lines.length < 4 || lines[3] == null || lines[3].isEmpty())
+			return null;
+		return new WindowsAttributes(Integer.valueOf(lines[3]));
+	}
 
 	@Override
 	public void rename(String from, String to) throws PathNotFoundException,
@@ -575,6 +739,29 @@ public class ExtendedSupportFs extends FullFileSystem {
 		return innerFs.getTotalFilesCount();
 	}
 
+	public long getInodeNumber(EntityInfo info) {
+		String path = info.getFullPath();
+		//The metadata files and emulated symbolic links are no entries of the inner file system
+		if (path.contains(hiddenPrefix))
+			return 0;
+		if (symlinks && SymbolicLinkInfo.class.isInstance(info))
+			return 0;
+		if (hardlinks)
+		{
+			//All hard links share the number of the original
+			String[] hardlinks = getHardLinks(path);
+			if (hardlinks.length > 0)
+			{
+				try {
+					return innerFs.getInodeNumber(innerFs.getFileMetaData(hardlinks[0]));
+				} catch (PathNotFoundException e) {
+					return 0;
+				}
+			}
+		}
+		return innerFs.getInodeNumber(info);
+	}
+
 	public long getFreeBlockAvailableCount() {
 		return innerFs.getFreeBlockAvailableCount();
 	}
@@ -708,25 +895,9 @@ public class ExtendedSupportFs extends FullFileSystem {
 		}
 		if (unixPermissions)
 		{
-			try {
-				String[] lines = FileSystemUtils.readLines(attributeFs, getPermissionsPath(path));
-				if (lines.length == 0 || !lines[0].isEmpty())
-				{
-					int permissions = Integer.valueOf(lines[0]);
-					int uid = Integer.valueOf(lines[1]);
-					int gid = Integer.valueOf(lines[2]);
-					return new UnixPermissions(permissions, uid, gid);
-				}
-				
-			} catch (AccessDeniedException e) {
-				e.printStackTrace();
-			} catch (NotAFileException e) {
-				e.printStackTrace();
-			} catch (PathNotFoundException e)
-			{
-				if (!innerFs.pathExists(path))
-					throw e;
-			}
+			UnixPermissions perms = parseUnixPermissions(readPermissionLines(path));
+			if (perms != null)
+				return perms;
 		}
 		return innerFs.getUnixPermissions(path);
 	}
@@ -791,23 +962,9 @@ public class ExtendedSupportFs extends FullFileSystem {
 		}
 		if (windowsAttributes)
 		{
-			try {
-				String[] lines = FileSystemUtils.readLines(attributeFs, getPermissionsPath(path));
-				if (lines.length > 3)
-				{
-					int permissions = Integer.valueOf(lines[3]);
-					return new WindowsAttributes(permissions);
-				}
-				
-			} catch (AccessDeniedException e) {
-				e.printStackTrace();
-			} catch (NotAFileException e) {
-				e.printStackTrace();
-			} catch (PathNotFoundException e)
-			{
-				if (!innerFs.pathExists(path))
-					throw e;
-			}
+			WindowsAttributes attributes = parseWindowsAttributes(readPermissionLines(path));
+			if (attributes != null)
+				return attributes;
 		}
 		return new WindowsAttributes();
 	}
@@ -4,6 +4,8 @@ import java.nio.ByteBuffer;
 
 import jfilesyslib.FileSystem;
 import jfilesyslib.FullFileSystem;
+import jfilesyslib.data.DirectoryEntry;
+import jfilesyslib.data.DirectoryInfo;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.ExtendedAttribute;
 import jfilesyslib.data.FileHandle;
@@ -201,6 +203,12 @@ public class LoggingFs extends FullFileSystem {
 		innerFs.flush(fh);
 	}
 
+	@Override
+	public void fsync(FileHandle fh, boolean dataOnly) throws DriveFullException {
+		log("fsync(\"" + fh.getFilePath() + "\", dataOnly = " + dataOnly + ")");
+		innerFs.fsync(fh, dataOnly);
+	}
+
 
 	@Override
 	public void close(FileHandle fh) throws DriveFullException {
@@ -247,6 +255,27 @@ public class LoggingFs extends FullFileSystem {
 		}
 	}
 
+	@Override
+	public Iterable<DirectoryEntry> listDirectoryWithAttributes(String path, boolean unixPermissions, boolean windowsAttributes)
+			throws NotADirectoryException, PathNotFoundException, AccessDeniedException {
+		log("listDirectoryWithAttributes(\"" + path + "\", " + unixPermissions + ", " + windowsAttributes + ")");
+		try
+		{
+			return innerFs.listDirectoryWithAttributes(path, unixPermissions, windowsAttributes);
+		} catch (NotADirectoryException ex)
+		{
+			log(ex);
+			throw ex;
+		} catch (PathNotFoundException ex)
+		{
+			log(ex);
+			throw ex;
+		} catch (AccessDeniedException ex) {
+			log(ex);
+			throw ex;
+		}
+	}
+
 	@Override
 	public EntityInfo getFileMetaData(String path) throws PathNotFoundException {
 		log("getFileMetaData(\"" + path + "\")");
@@ -445,6 +474,16 @@ public class LoggingFs extends FullFileSystem {
 		return innerFs.getTotalFilesCount();
 	}
 
+	@Override
+	public long getInodeNumber(EntityInfo info) {
+		return innerFs.getInodeNumber(info);
+	}
+
+	@Override
+	public int getNumberOfFilesInDirectory(DirectoryInfo info) {
+		return innerFs.getNumberOfFilesInDirectory(info);
+	}
+
 	@Override
 	public UnixPermissions getUnixPermissions(String path)
 			throws PathNotFoundException {
@@ -461,6 +500,22 @@ public class LoggingFs extends FullFileSystem {
 		return perms;
 	}
 
+	@Override
+	public UnixPermissions getUnixPermissions(EntityInfo info)
+			throws PathNotFoundException {
+		UnixPermissions perms;
+		try {
+			perms = innerFs.getUnixPermissions(info);
+		}
+		catch (PathNotFoundException ex)
+		{
+			log(ex);
+			throw ex;
+		}
+		log("getUnixPermissions(\"" + info.getFullPath() + "\"): " + perms);
+		return perms;
+	}
+
 	@Override
 	public void setWindowsAttributes(String path,
 			WindowsAttributes windowsAttributes) throws PathNotFoundException,
@@ -0,0 +1,137 @@
+package jfilesyslib.filesystems;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read only file, which is served from memory mapped windows.<br>
+ * The windows are mapped on first use and shared by every handle of the file.
+ * They are released with the last handle; the mapped pages belong to the page cache,
+ * so the kernel reclaims them under memory pressure like any other cached file data.
+ * @author Marc Miltenberger
+ */
+class MappedFile {
+	/**
+	 * The size of a window, a single MappedByteBuffer cannot be larger than 2 GiB
+	 */
+	static final int WINDOWSIZE = 1 << 30;
+
+	final String key;
+	final long size;
+	final long lastModified;
+	private final FileChannel channel;
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+	private int references = 1;
+
+	MappedFile(String key, FileChannel channel, long lastModified) throws IOException {
+		this.key = key;
+		this.channel = channel;
+		try {
+			this.size = channel.size();
+		} catch (IOException e) {
+			// the channel belongs to the mapped file, which is not created
+			channel.close();
+			throw e;
+		}
+		this.lastModified = lastModified;
+		this.windows = new AtomicReferenceArray<MappedByteBuffer>((int) ((size + WINDOWSIZE - 1) / WINDOWSIZE));
+	}
+
+	/**
+	 * Reads from the mapped windows; falls back to the channel if the file cannot be mapped
+	 * or has been truncated in the meantime
+	 * @param dst the buffer to fill
+	 * @param offset the offset within the file
+	 * @return the number of read bytes
+	 */
+	int read(ByteBuffer dst, long offset) {
+		if (offset >= size)
+			return 0;
+		int toRead = (int) Math.min(dst.remaining(), size - offset);
+		int start = dst.position();
+		try {
+			int remaining = toRead;
+			while (remaining > 0)
+			{
+				int index = (int) (offset / WINDOWSIZE);
+				int positionWithinWindow = (int) (offset % WINDOWSIZE);
+				ByteBuffer window = getWindow(index).duplicate();
+				int step = Math.min(remaining, window.capacity() - positionWithinWindow);
+				window.position(positionWithinWindow);
+				window.limit(positionWithinWindow + step);
+				dst.put(window);
+				remaining -= step;
+				offset += step;
+			}
+			return toRead;
+		} catch (IOException e) {
+			return readChannel(dst, offset, start);
+		} catch (InternalError e) {
+			//SIGBUS, the file has been truncated by someone else
+			return readChannel(dst, offset, start);
+		}
+	}
+
+	private int readChannel(ByteBuffer dst, long offset, int start) {
+		long base = offset - (dst.position() - start);
+		try {
+			while (dst.hasRemaining())
+			{
+				if (channel.read(dst, base + dst.position() - start) < 0)
+					break;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return dst.position() - start;
+	}
+
+	private MappedByteBuffer getWindow(int index) throws IOException {
+		MappedByteBuffer window = windows.get(index);
+		if (window != null)
+			return window;
+		synchronized (this) {
+			window = windows.get(index);
+			if (window == null)
+			{
+				long position = (long) index * WINDOWSIZE;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOWSIZE, size - position));
+				windows.set(index, window);
+			}
+			return window;
+		}
+	}
+
+	/**
+	 * Adds a handle
+	 * @return false if the file has already been released
+	 */
+	synchronized boolean retain() {
+		if (references == 0)
+			return false;
+		references++;
+		return true;
+	}
+
+	/**
+	 * Removes a handle and drops the mappings with the last one
+	 * @return true if it was the last handle
+	 */
+	synchronized boolean release() throws IOException {
+		references--;
+		if (references > 0)
+			return false;
+		//unmapping explicitly could crash concurrent readers, so the garbage collector unmaps the windows
+		for (int i = 0; i < windows.length(); i++)
+			windows.set(i, null);
+		channel.close();
+		return true;
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+}
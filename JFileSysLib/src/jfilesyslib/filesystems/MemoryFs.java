@@ -1,104 +1,453 @@
 package jfilesyslib.filesystems;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import jfilesyslib.FileSystem;
+import jfilesyslib.data.DirectoryEntry;
 import jfilesyslib.data.DirectoryInfo;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.FileHandle;
 import jfilesyslib.data.FileInfo;
+import jfilesyslib.data.UnixPermissions;
+import jfilesyslib.data.WindowsAttributes;
 import jfilesyslib.exceptions.AccessDeniedException;
 import jfilesyslib.exceptions.DestinationAlreadyExistsException;
+import jfilesyslib.exceptions.DriveFullException;
 import jfilesyslib.exceptions.NotADirectoryException;
 import jfilesyslib.exceptions.NotAFileException;
 import jfilesyslib.exceptions.PathNotFoundException;
+import jfilesyslib.utils.ChunkCompressor;
+import jfilesyslib.utils.ChunkStore;
 import jfilesyslib.utils.DateUtils;
+import jfilesyslib.utils.MemoryQuota;
 import jfilesyslib.utils.MemoryStream;
+import jfilesyslib.utils.OffHeapArena;
 
 
 /**
- * A temporary (virtual) file system.
+ * A temporary (virtual) file system.<br>
+ * It is <i>thread safe</i>; every operation is linearizable:
+ * <ul>
+ * <li>Each directory has a read/write lock guarding its entries. Lookups take the read lock of one directory at a time,
+ * operations which add or remove entries take the write locks of the affected directories, ordered by creation.</li>
+ * <li>Operations which rewrite or copy whole subtrees, i.e. renaming or deleting a directory and taking or restoring snapshots,
+ * hold the namespace lock exclusively.
+ * All other operations which resolve paths hold it shared, so they run in parallel as long as they touch different directories.</li>
+ * <li>The content of each file is guarded by its own {@link MemoryStream}; reading or writing through a handle takes no namespace lock.</li>
+ * </ul>
+ * {@link #snapshot()}, {@link #restore(Snapshot)} and {@link #fork()} copy the directory tree, but not the file contents:
+ * these are shared chunk by chunk and a chunk is only copied when it is written to afterwards.<br>
+ * If deduplication is enabled, the full chunks of a file are shared with all chunks of equal content
+ * whenever a handle which has been opened for writing is closed.<br>
+ * If a {@link ChunkCompressor} is given, the cold chunks of all files are compressed in the background
+ * as soon as the uncompressed chunks exceed its budget.<br>
+ * If a journal directory is given, the file system is persistent: every change is appended to a write-ahead journal
+ * and the whole file system is written to a checkpoint whenever the journal grows too large.
+ * Changes of the namespace are durable when the operation returns, written data when the handle is synced (fsync) or closed.
+ * Reads are served from memory only.<br>
+ * The whole file system may be exported to an image, which is memory-mapped when it is loaded.<br>
+ * The memory held by the file contents is accounted exactly and limited by a capacity, which is reported as the size of the volume.
  * @author Marc Miltenberger
  */
 public class MemoryFs extends FileSystem {
+	/**
+	 * The default number of paths kept in the path cache
+	 */
+	public static final int DEFAULTPATHCACHESIZE = 8192;
+	/**
+	 * The default size of the journal in bytes, which triggers a checkpoint
+	 */
+	public static final long DEFAULTCHECKPOINTSIZE = 64L * 1024 * 1024;
+	private static final int CHECKPOINTMAGIC = 0x4A464D53;
+	private static final int CHECKPOINTVERSION = 1;
+	private static final int IMAGEMAGIC = 0x4A464D49;
+	// version 2 stores the ids of the directories
+	private static final int IMAGEVERSION = 2;
+	private static final int IMAGEHEADERSIZE = 32;
+	private static final int IMAGESEGMENTSIZE = 1 << 30;
+	// the delay in milliseconds between checkpoints which try to repair a failed journal
+	private static final long CHECKPOINTRETRYDELAY = 1000;
+	
+	private final AtomicLong nextDirectoryId = new AtomicLong();
+	private final AtomicLong nextFileId = new AtomicLong(1);
 	Directory root = new Directory("/");
+	private final ReentrantReadWriteLock namespaceLock = new ReentrantReadWriteLock();
+	private final PathCache pathCache;
+	private final OffHeapArena arena;
+	private final ChunkStore chunkStore;
+	private final ChunkCompressor compressor;
+	private final MemoryQuota quota;
+	// the number of files and directories except for the root
+	private final AtomicLong entryCount = new AtomicLong();
+	private volatile MemoryFsJournal journal;
+	private final Object checkpointLock = new Object();
+	private final AtomicBoolean checkpointRunning = new AtomicBoolean();
+	private volatile long nextCheckpointRetry;
+	
+	/**
+	 * Caches the entries of recently resolved full paths.<br>
+	 * Lookups do not lock or change the map; they only mark the entry as referenced.
+	 * If the cache is full, a clock hand sweeps over the entries and evicts those,
+	 * which have not been referenced since it passed them last (second chance).
+	 * @author Marc Miltenberger
+	 */
+	private static class PathCache {
+		private static class Entry {
+			final EntityInfo info;
+			volatile boolean referenced;
+			
+			Entry(EntityInfo info) {
+				this.info = info;
+				this.referenced = true;
+			}
+		}
+		
+		private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final Object evictionLock = new Object();
+		// guarded by the eviction lock
+		private Iterator<Map.Entry<String, Entry>> hand;
+		private final int maxSize;
+		
+		public PathCache(int maxSize) {
+			this.maxSize = maxSize;
+		}
+		
+		public EntityInfo get(String key) {
+			Entry entry = entries.get(key);
+			if (entry == null)
+				return null;
+			if (!entry.referenced)
+				entry.referenced = true;
+			return entry.info;
+		}
+		
+		public void put(String key, EntityInfo info) {
+			if (maxSize == 0)
+				return;
+			if (entries.put(key, new Entry(info)) == null && size.incrementAndGet() > maxSize)
+				evict();
+		}
+		
+		public void remove(String key) {
+			if (entries.remove(key) != null)
+				size.decrementAndGet();
+		}
+		
+		public void clear() {
+			Iterator<String> it = entries.keySet().iterator();
+			while (it.hasNext())
+				remove(it.next());
+		}
+		
+		/**
+		 * Evicts entries until the cache is filled to seven eighths, so the sweep does not run on every insert
+		 */
+		private void evict() {
+			synchronized (evictionLock)
+			{
+				int target = maxSize - maxSize / 8;
+				while (size.get() > target)
+				{
+					if (hand == null || !hand.hasNext())
+						hand = entries.entrySet().iterator();
+					while (hand.hasNext() && size.get() > target)
+					{
+						Map.Entry<String, Entry> entry = hand.next();
+						if (entry.getValue().referenced)
+							entry.getValue().referenced = false;
+						else if (entries.remove(entry.getKey(), entry.getValue()))
+							size.decrementAndGet();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Removes every path below the given directory path
+		 * @param directoryPath the directory path
+		 */
+		public void removeSubtree(String directoryPath) {
+			String prefix = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+			Iterator<String> it = entries.keySet().iterator();
+			while (it.hasNext())
+			{
+				String key = it.next();
+				if (key.startsWith(prefix))
+					remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * A point-in-time copy of a memory file system, taken by {@link MemoryFs#snapshot()}.<br>
+	 * It shares the content of its files with the file system it was taken from.
+	 * If the contents are stored outside of the java heap, {@link #release()} has to be called
+	 * as soon as the snapshot is not needed anymore.
+	 * @author Marc Miltenberger
+	 */
+	public static class Snapshot {
+		private final Directory root;
+		private final OffHeapArena arena;
+		private final ChunkStore chunkStore;
+		private boolean released;
+		
+		Snapshot(Directory root, OffHeapArena arena, ChunkStore chunkStore) {
+			this.root = root;
+			this.arena = arena;
+			this.chunkStore = chunkStore;
+		}
+		
+		/**
+		 * Releases the file contents held by the snapshot.<br>
+		 * Afterwards, the snapshot cannot be restored anymore.
+		 */
+		public synchronized void release() {
+			if (released)
+				return;
+			released = true;
+			releaseContents(root);
+		}
+		
+		private static void releaseContents(Directory dir) {
+			for (File file : dir.files.values())
+				file.content.release();
+			for (Directory subdir : dir.subdirs.values())
+				releaseContents(subdir);
+		}
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system
+	 */
+	public MemoryFs() {
+		this(DEFAULTPATHCACHESIZE, null);
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system
+	 * @param pathCacheSize the maximum number of resolved paths to cache
+	 */
+	public MemoryFs(int pathCacheSize) {
+		this(pathCacheSize, null);
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system, which stores the file contents outside of the java heap.<br>
+	 * The capacity of the arena is reported as the size of the file system.
+	 * @param arena the arena the file contents are allocated from
+	 */
+	public MemoryFs(OffHeapArena arena) {
+		this(DEFAULTPATHCACHESIZE, arena);
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system
+	 * @param pathCacheSize the maximum number of resolved paths to cache
+	 * @param arena the arena the file contents are allocated from or null to store them on the java heap
+	 */
+	public MemoryFs(int pathCacheSize, OffHeapArena arena) {
+		this(pathCacheSize, arena, false);
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system
+	 * @param pathCacheSize the maximum number of resolved paths to cache
+	 * @param arena the arena the file contents are allocated from or null to store them on the java heap
+	 * @param deduplicate whether chunks with equal content should be shared between and within files
+	 */
+	public MemoryFs(int pathCacheSize, OffHeapArena arena, boolean deduplicate) {
+		this(pathCacheSize, arena, deduplicate, null);
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system
+	 * @param pathCacheSize the maximum number of resolved paths to cache
+	 * @param arena the arena the file contents are allocated from or null to store them on the java heap
+	 * @param deduplicate whether chunks with equal content should be shared between and within files
+	 * @param compressor the compressor for cold chunks or null to keep all chunks uncompressed; it has to be started separately
+	 */
+	public MemoryFs(int pathCacheSize, OffHeapArena arena, boolean deduplicate, ChunkCompressor compressor) {
+		this(pathCacheSize, arena, deduplicate ? new ChunkStore() : null, compressor, new MemoryQuota(getDefaultCapacity(arena)));
+	}
+	
+	/**
+	 * Creates a new instance of a persistent memory file system.<br>
+	 * Its content is recovered from the journal directory.
+	 * @param journalDirectory the directory which holds the journal and the checkpoints
+	 * @throws IOException the journal could not be read
+	 */
+	public MemoryFs(java.io.File journalDirectory) throws IOException {
+		this(DEFAULTPATHCACHESIZE, null, false, null, journalDirectory);
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system
+	 * @param pathCacheSize the maximum number of resolved paths to cache
+	 * @param arena the arena the file contents are allocated from or null to store them on the java heap
+	 * @param deduplicate whether chunks with equal content should be shared between and within files
+	 * @param compressor the compressor for cold chunks or null to keep all chunks uncompressed; it has to be started separately
+	 * @param journalDirectory the directory which holds the journal and the checkpoints or null if the file system is not persistent
+	 * @throws IOException the journal could not be read
+	 */
+	public MemoryFs(int pathCacheSize, OffHeapArena arena, boolean deduplicate, ChunkCompressor compressor, java.io.File journalDirectory) throws IOException {
+		this(pathCacheSize, arena, deduplicate, compressor, journalDirectory, getDefaultCapacity(arena));
+	}
+	
+	/**
+	 * Creates a new instance of the memory file system
+	 * @param pathCacheSize the maximum number of resolved paths to cache
+	 * @param arena the arena the file contents are allocated from or null to store them on the java heap
+	 * @param deduplicate whether chunks with equal content should be shared between and within files
+	 * @param compressor the compressor for cold chunks or null to keep all chunks uncompressed; it has to be started separately
+	 * @param journalDirectory the directory which holds the journal and the checkpoints or null if the file system is not persistent
+	 * @param capacity the maximum number of bytes the file contents may occupy; writes beyond it fail with a {@link DriveFullException}
+	 * @throws IOException the journal could not be read
+	 */
+	public MemoryFs(int pathCacheSize, OffHeapArena arena, boolean deduplicate, ChunkCompressor compressor, java.io.File journalDirectory, long capacity) throws IOException {
+		this(pathCacheSize, arena, deduplicate ? new ChunkStore() : null, compressor, new MemoryQuota(capacity));
+		if (journalDirectory != null)
+			openJournal(journalDirectory);
+	}
+	
+	private MemoryFs(int pathCacheSize, OffHeapArena arena, ChunkStore chunkStore, ChunkCompressor compressor, MemoryQuota quota) {
+		if (pathCacheSize < 0)
+			throw new IllegalArgumentException("pathCacheSize should not be negative; was: " + pathCacheSize);
+		pathCache = new PathCache(pathCacheSize);
+		this.arena = arena;
+		this.chunkStore = chunkStore;
+		this.compressor = compressor;
+		this.quota = quota;
+	}
+	
+	/**
+	 * Returns the default capacity: the capacity of the arena or three quarters of the maximum heap size,
+	 * so the file system runs full before the java heap does
+	 */
+	private static long getDefaultCapacity(OffHeapArena arena) {
+		if (arena != null)
+			return arena.getCapacity();
+		return Runtime.getRuntime().maxMemory() / 4 * 3;
+	}
 	
 	class InternalFileHandle {
 		boolean read;
 		boolean write;
+		// whether the kernel may keep the cached content
+		boolean keepCache;
 		MemoryStream stream;
 		
 		
-		public InternalFileHandle(File file, boolean read, boolean write) {
+		public InternalFileHandle(File file, boolean read, boolean write) throws PathNotFoundException {
 			this.file = file;
 			this.read = read;
 			this.write = write;
-			file.setLastAccessTime(DateUtils.getNow());
-			open();
-		}
-		
-		private void open()
-		{
-			stream = new MemoryStream(file.content);
-			try {
-				stream.seek(0);
-			} catch (IOException e) {
-				e.printStackTrace();
+			synchronized (file)
+			{
+				// the file may have been deleted after it has been looked up
+				if (file.deleted)
+					throw new PathNotFoundException(file.getFullPath());
+				file.openHandles++;
+				// another file may have been renamed to the path in the meantime
+				keepCache = file.contentVersion == file.openedVersion && file.getFullPath().equals(file.openedPath);
+				file.openedVersion = file.contentVersion;
+				file.openedPath = file.getFullPath();
 			}
+			file.setLastAccessTime(DateUtils.getNow());
+			stream = file.content;
 		}
 		
 		
 		public void close() {
-			if (stream != null)
+			if (write)
 			{
-				try {
-					if (write)
-					{
-						file.setLastModificationTime(DateUtils.getNow());
-						int l = stream.getLength();
-						file.content = stream.getChunkList();
-						file.setFileSize(l);
-					}
-					stream.close();
-				} catch (Exception e) {
-					e.printStackTrace();
+				synchronized (file)
+				{
+					file.setLastModificationTime(DateUtils.getNow());
+					logTimes(file);
 				}
+				stream.deduplicate();
+			}
+			synchronized (file)
+			{
+				file.openHandles--;
+				if (file.deleted && file.openHandles == 0)
+					file.content.release();
 			}
 		}
 
 		File file;
 
 
-		public void setLength(long length) {
-			if (stream == null)
-				return;
-			
-			/*close();
-			file.setFileSize(length);
-			byte[] newFileContent = new byte[(int)length];
-			System.arraycopy(file.content, 0, newFileContent, 0, (int)length);
-			file.content = newFileContent;
-			open();*/
+		public void setLength(long length) throws DriveFullException {
 			try {
 				stream.setLength(length);
-				file.setFileSize(length);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			synchronized (file)
+			{
+				file.contentVersion++;
+			}
 		}
 	}
 
 	
 	class File extends FileInfo {
-		public List<MemoryStream.Chunk> content = new ArrayList<MemoryStream.Chunk>();
+		public MemoryStream content = new MemoryStream(arena, chunkStore, compressor, quota);
 		Directory parentDirectory;
+		int openHandles;
+		boolean deleted;
+		// identifies the file in the journal
+		final long id;
+		// the last journal record which changed the file
+		volatile long journalSequence;
+		// counts the changes of the content; guarded by the file
+		long contentVersion;
+		// the content version and the path when the file has been opened last; guarded by the file
+		long openedVersion = -1;
+		String openedPath;
+
+		public File(String fullPath, long id) {
+			super(fullPath, 0);
+			this.id = id;
+		}
 
-		public File(String fullPath, long fileSize) {
-			super(fullPath, fileSize);
+		/**
+		 * Returns the length of the content
+		 */
+		@Override
+		public long getFileSize() {
+			return content.getLength();
 		}
 
 
@@ -114,12 +463,24 @@ public class MemoryFs extends FileSystem {
 	}
 	
 	class Directory extends DirectoryInfo {
+		// the inode number; it is kept when the tree is copied
+		final long id;
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 		Directory parentDirectory;
-		List<Directory> subdirs = new LinkedList<Directory>();
-		List<File> files = new LinkedList<File>();
+		Map<String, Directory> subdirs = new LinkedHashMap<String, Directory>();
+		Map<String, File> files = new LinkedHashMap<String, File>();
 
 		public Directory(String fullPath) {
+			this(fullPath, nextDirectoryId.getAndIncrement());
+		}
+
+		public Directory(String fullPath, long id) {
 			super(fullPath);
+			this.id = id;
+			// the id may come from another file system, e.g. from a snapshot or an image
+			long next;
+			while ((next = nextDirectoryId.get()) <= id && !nextDirectoryId.compareAndSet(next, id + 1))
+				;
 		}
 		
 		public Directory getParentDirectory()
@@ -134,100 +495,215 @@ public class MemoryFs extends FileSystem {
 		
 		public Directory findSubdir(String subdirName)
 		{
-			for (Directory dir : subdirs)
-			{
-				if (dir.getFileName().equals(subdirName))
-					return dir;
-			}
-			return null;
+			return subdirs.get(getNameKey(subdirName));
 		}
 		
 		public File findFile(String file)
 		{
-			for (File seek : files)
-			{
-				if (seek.getFileName().equals(file))
-					return seek;
-			}
-			return null;
+			return files.get(getNameKey(file));
 		}
 		
 		public boolean containsSubItem(String name)
 		{
-			if (findSubdir(name) != null || findFile(name) != null)
+			String key = getNameKey(name);
+			if (subdirs.containsKey(key) || files.containsKey(key))
 				return true;
 			else
 				return false;
 		}
 		
 		public List<EntityInfo> combine() {
-			List<EntityInfo> result = new LinkedList<EntityInfo>();
-			result.addAll(files);
-			result.addAll(subdirs);
+			List<EntityInfo> result = new ArrayList<EntityInfo>(files.size() + subdirs.size());
+			result.addAll(files.values());
+			result.addAll(subdirs.values());
 			return result;
 		}
 
 		public void removeSubItem(EntityInfo info) {
-			Directory dir = findSubdir(info.getFileName());
-			if (dir != null)
-				subdirs.remove(dir);
-			File file = findFile(info.getFileName());
-			if (file != null)
-				files.remove(file);
+			String key = getNameKey(info.getFileName());
+			if (subdirs.get(key) == info)
+				subdirs.remove(key);
+			if (files.get(key) == info)
+				files.remove(key);
 		}
 
 		public void addSubItem(EntityInfo info) {
 			if (Directory.class.isInstance(info))
 			{
 				Directory dir = (Directory)info;
-				subdirs.add(dir);
+				subdirs.put(getNameKey(dir.getFileName()), dir);
 				dir.parentDirectory = this;
 			}
 			
 			if (File.class.isInstance(info))
 			{
 				File file = (File)info;
-				files.add(file);
+				files.put(getNameKey(file.getFileName()), file);
 				file.parentDirectory = this;
 			}
 			
 		}
 	}
 	
-	private Directory findParent(EntityInfo info) {
-		if (Directory.class.isInstance(info))
-			return ((Directory)info).getParentDirectory();
-		if (File.class.isInstance(info))
-			return ((File)info).getParentDirectory();
-		return null;
+	/**
+	 * Returns the key under which an entry is indexed within its directory.<br>
+	 * If the file system is not case sensitive, the name is case-folded.
+	 * @param name the file name
+	 * @return the index key
+	 */
+	String getNameKey(String name) {
+		if (isCaseSensitive())
+			return name;
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+	
+	/**
+	 * Takes the write locks of both directories, the older one first
+	 */
+	private static void lockForWriting(Directory a, Directory b) {
+		if (a.id > b.id)
+		{
+			Directory c = a;
+			a = b;
+			b = c;
+		}
+		a.lock.writeLock().lock();
+		if (a != b)
+			b.lock.writeLock().lock();
+	}
+	
+	private static void unlockForWriting(Directory a, Directory b) {
+		if (a != b)
+			b.lock.writeLock().unlock();
+		a.lock.writeLock().unlock();
+	}
+	
+	private static String getName(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+	
+	/**
+	 * Returns the entry with the given name; the lock of the directory has to be held.
+	 */
+	private static EntityInfo findSubItem(Directory dir, String name) {
+		EntityInfo info = dir.findSubdir(name);
+		if (info != null)
+			return info;
+		return dir.findFile(name);
 	}
-
 	
 	private Directory findParent(String path) throws PathNotFoundException {
 
 		if (path.equals("/"))
 			return root;
-		String[] splitted = path.split("/");
-		Directory currentDir = root;
-		for (int i = 1; i < splitted.length - 1; i++)
-		{
-			currentDir = currentDir.findSubdir(splitted[i]);
-			if (currentDir == null)
-				throw new PathNotFoundException(path);
-		}
-		return currentDir;
+		int index = path.lastIndexOf('/');
+		if (index <= 0)
+			return root;
+		EntityInfo parent = find(path.substring(0, index));
+		if (!Directory.class.isInstance(parent))
+			throw new PathNotFoundException(path);
+		return (Directory)parent;
 	}
 	
+	/**
+	 * Looks up the entry; the namespace lock has to be held.
+	 * @param path the path
+	 * @return the entry or null if the last path component does not exist
+	 * @throws PathNotFoundException a parent directory could not be found
+	 */
 	private EntityInfo find(String path) throws PathNotFoundException {
 
 		if (path.equals("/"))
 			return root;
-		String[] splitted = path.split("/");
-		Directory parent = (Directory)findParent(path);
-		Directory test = parent.findSubdir(splitted[splitted.length - 1]);
-		if (test != null)
-			return test;
-		return parent.findFile(splitted[splitted.length - 1]);
+		String key = getNameKey(path);
+		EntityInfo info;
+		info = pathCache.get(key);
+		if (info != null)
+			return info;
+		return resolve(path, key);
+	}
+	
+	/**
+	 * Walks the directory tree from the root without consulting the path cache.<br>
+	 * The result is cached while the lock of its directory is still held,
+	 * so it cannot be removed from the directory before it is cached.
+	 * @param path the path
+	 * @param key the key of the path in the path cache
+	 * @return the entry or null if the last path component does not exist
+	 * @throws PathNotFoundException a parent directory could not be found
+	 */
+	private EntityInfo resolve(String path, String key) throws PathNotFoundException {
+		Directory currentDir = root;
+		int length = path.length();
+		int start = 0;
+		while (true)
+		{
+			while (start < length && path.charAt(start) == '/')
+				start++;
+			if (start >= length)
+				return currentDir;
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = length;
+			String name = path.substring(start, end);
+			start = end;
+			while (start < length && path.charAt(start) == '/')
+				start++;
+			if (start >= length)
+			{
+				currentDir.lock.readLock().lock();
+				try {
+					EntityInfo info = findSubItem(currentDir, name);
+					if (info != null)
+					{
+						pathCache.put(key, info);
+					}
+					return info;
+				} finally {
+					currentDir.lock.readLock().unlock();
+				}
+			}
+			Directory subdir;
+			currentDir.lock.readLock().lock();
+			try {
+				subdir = currentDir.findSubdir(name);
+			} finally {
+				currentDir.lock.readLock().unlock();
+			}
+			if (subdir == null)
+				throw new PathNotFoundException(path);
+			currentDir = subdir;
+		}
+	}
+	
+	/**
+	 * Recalculates the full paths of all entries below the directory after it has been moved.
+	 * @param dir the directory
+	 */
+	private void updateSubtreePaths(Directory dir) {
+		String prefix = dir.getFullPath();
+		if (!prefix.endsWith("/"))
+			prefix += "/";
+		for (File file : dir.files.values())
+			file.setFullPath(prefix + file.getFileName());
+		for (Directory subdir : dir.subdirs.values())
+		{
+			subdir.setFullPath(prefix + subdir.getFileName());
+			updateSubtreePaths(subdir);
+		}
+	}
+	
+	/**
+	 * Removes the path from the path cache; the write lock of the directory containing the entry has to be held.<br>
+	 * If the path refers to a directory, every cached path below it is removed as well.
+	 * @param path the path
+	 * @param info the entry the path refers to
+	 */
+	private void invalidatePath(String path, EntityInfo info) {
+		String key = getNameKey(path);
+		pathCache.remove(key);
+		if (Directory.class.isInstance(info))
+			pathCache.removeSubtree(key);
 	}
 	
 	
@@ -235,45 +711,157 @@ public class MemoryFs extends FileSystem {
 	public Iterable<EntityInfo> listDirectory(String path)
 			throws NotADirectoryException, PathNotFoundException {
 		
-		EntityInfo info = find(path);
-		if (info == null)
-			throw new PathNotFoundException(path);
-		if (!Directory.class.isInstance(info))
-			throw new NotADirectoryException();
-		return ((Directory)info).combine();
+		namespaceLock.readLock().lock();
+		try {
+			EntityInfo info = find(path);
+			if (info == null)
+				throw new PathNotFoundException(path);
+			if (!Directory.class.isInstance(info))
+				throw new NotADirectoryException();
+			Directory dir = (Directory)info;
+			dir.lock.readLock().lock();
+			try {
+				return dir.combine();
+			} finally {
+				dir.lock.readLock().unlock();
+			}
+		} finally {
+			namespaceLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Iterable<DirectoryEntry> listDirectoryWithAttributes(String path, boolean unixPermissions, boolean windowsAttributes)
+			throws NotADirectoryException, PathNotFoundException {
+		// the attributes are the same for every entry, so one snapshot of the directory is enough
+		WindowsAttributes attributes = null;
+		if (windowsAttributes)
+			attributes = isReadOnly() ? WindowsAttributes.ReadOnlyWindowsAttributes : WindowsAttributes.DefaultWindowsAttributes;
+		List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+		for (EntityInfo info : listDirectory(path))
+		{
+			UnixPermissions perms = null;
+			if (unixPermissions)
+			{
+				if (DirectoryInfo.class.isInstance(info))
+					perms = UnixPermissions.DefaultDirectoryPermissions;
+				else
+					perms = UnixPermissions.DefaultFilePermissions;
+			}
+			entries.add(new DirectoryEntry(info, perms, attributes));
+		}
+		return entries;
+	}
+
+	@Override
+	public int getNumberOfFilesInDirectory(DirectoryInfo info) {
+		Directory dir;
+		if (Directory.class.isInstance(info))
+			dir = (Directory) info;
+		else
+		{
+			try {
+				EntityInfo found = findExisting(info.getFullPath());
+				if (!Directory.class.isInstance(found))
+					return 0;
+				dir = (Directory) found;
+			} catch (PathNotFoundException e) {
+				return 0;
+			}
+		}
+		dir.lock.readLock().lock();
+		try {
+			return dir.files.size() + dir.subdirs.size();
+		} finally {
+			dir.lock.readLock().unlock();
+		}
 	}
 
 	@Override
 	public EntityInfo getFileMetaData(String path) throws PathNotFoundException {
-		EntityInfo info = find(path);
-		if (info == null)
-			throw new PathNotFoundException(path);
-		return info;
+		return findExisting(path);
+	}
+	
+	/**
+	 * Looks up the entry, holding the namespace lock shared.
+	 * @param path the path
+	 * @return the entry
+	 * @throws PathNotFoundException the entry does not exist
+	 */
+	private EntityInfo findExisting(String path) throws PathNotFoundException {
+		namespaceLock.readLock().lock();
+		try {
+			EntityInfo info = find(path);
+			if (info == null)
+				throw new PathNotFoundException(path);
+			return info;
+		} finally {
+			namespaceLock.readLock().unlock();
+		}
 	}
 
 	@Override
 	public void rename(String from, String to) throws PathNotFoundException,
 			DestinationAlreadyExistsException, AccessDeniedException {
 
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		boolean moved;
+		namespaceLock.readLock().lock();
+		try {
+			moved = move(from, to, false);
+		} finally {
+			namespaceLock.readLock().unlock();
+		}
+		if (!moved)
+		{
+			// moving a directory changes the paths of its whole subtree
+			namespaceLock.writeLock().lock();
+			try {
+				move(from, to, true);
+			} finally {
+				namespaceLock.writeLock().unlock();
+			}
+		}
+		if (!commitJournal())
+			throw new AccessDeniedException();
+	}
+	
+	/**
+	 * Moves the entry; the namespace lock has to be held.
+	 * @param from the source path
+	 * @param to the destination path
+	 * @param exclusive whether the namespace lock is held exclusively
+	 * @return false if the entry is a directory and the namespace lock is not held exclusively
+	 * @throws PathNotFoundException
+	 * @throws DestinationAlreadyExistsException
+	 */
+	private boolean move(String from, String to, boolean exclusive) throws PathNotFoundException,
+			DestinationAlreadyExistsException {
 		Directory dirParentFrom = findParent(from);
 		Directory dirParentTo = findParent(to);
-		
-		EntityInfo info = find(from);
-		
-		if (info == null)
-			throw new PathNotFoundException(from);
-		
-
-		
-		if (dirParentTo.containsSubItem(to.substring(to.lastIndexOf('/') + 1)))
-			throw new DestinationAlreadyExistsException();
-		
-		if (dirParentFrom != dirParentTo)
-		{
+		lockForWriting(dirParentFrom, dirParentTo);
+		try {
+			EntityInfo info = findSubItem(dirParentFrom, getName(from));
+			if (info == null)
+				throw new PathNotFoundException(from);
+			if (!exclusive && Directory.class.isInstance(info))
+				return false;
+			if (dirParentTo.containsSubItem(getName(to)))
+				throw new DestinationAlreadyExistsException();
+			
+			invalidatePath(from, info);
 			dirParentFrom.removeSubItem(info);
+			info.setFullPath(to);
 			dirParentTo.addSubItem(info);
+			if (Directory.class.isInstance(info))
+				updateSubtreePaths((Directory)info);
+			if (journal != null)
+				journal.logRename(from, to);
+			return true;
+		} finally {
+			unlockForWriting(dirParentFrom, dirParentTo);
 		}
-		info.setFullPath(to);
 	}
 
 	@Override
@@ -281,98 +869,169 @@ public class MemoryFs extends FileSystem {
 			throws PathNotFoundException, AccessDeniedException,
 			NotAFileException {
 		
-		EntityInfo info = find(path);
-		if (info == null)
-			throw new PathNotFoundException(path);
+		EntityInfo info = findExisting(path);
 
 		if (!File.class.isInstance(info))
 			throw new NotAFileException();
 		
-		return new FileHandle(path, new InternalFileHandle((File) info, read, write));
+		InternalFileHandle internal = new InternalFileHandle((File) info, read, write);
+		FileHandle handle = new FileHandle(path, internal);
+		// unless the content has changed since the file has been opened last, the pages the kernel has cached are still valid
+		handle.setKeepCache(internal.keepCache);
+		return handle;
 	}
 
 	@Override
 	public void createFile(String path) throws PathNotFoundException,
-			DestinationAlreadyExistsException {
-
-		EntityInfo seek = find(path);
-		
-		if (seek != null)
+			DestinationAlreadyExistsException, AccessDeniedException {
+		if (path.equals("/"))
 			throw new DestinationAlreadyExistsException();
-
-		EntityInfo parent = findParent(path);
-		Directory dir = (Directory)parent;
-		File newFile = new File(path, 0);
-		newFile.setCreationTime(DateUtils.getNow());
-		newFile.setLastAccessTime(newFile.getCreationTime());
-		newFile.setLastModificationTime(newFile.getCreationTime());
-		dir.files.add(newFile);
-		newFile.setParentDirectory(dir);
-		
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		namespaceLock.readLock().lock();
+		try {
+			addFile(path, nextFileId.getAndIncrement(), DateUtils.getNow());
+		} finally {
+			namespaceLock.readLock().unlock();
+		}
+		if (!commitJournal())
+			throw new AccessDeniedException();
+	}
+	
+	/**
+	 * Adds a new file; the namespace lock has to be held.
+	 * @param path the path
+	 * @param id the journal id of the file
+	 * @param time the creation time
+	 * @return the new file
+	 * @throws PathNotFoundException
+	 * @throws DestinationAlreadyExistsException
+	 */
+	private File addFile(String path, long id, long time) throws PathNotFoundException,
+			DestinationAlreadyExistsException {
+		Directory dir = findParent(path);
+		dir.lock.writeLock().lock();
+		try {
+			if (dir.containsSubItem(getName(path)))
+				throw new DestinationAlreadyExistsException();
+			File newFile = new File(path, id);
+			newFile.setCreationTime(time);
+			newFile.setLastAccessTime(time);
+			newFile.setLastModificationTime(time);
+			dir.addSubItem(newFile);
+			entryCount.incrementAndGet();
+			if (journal != null)
+				journal.logCreateFile(id, path, time);
+			return newFile;
+		} finally {
+			dir.lock.writeLock().unlock();
+		}
 	}
 
 	@Override
 	public void createDirectory(String path) throws PathNotFoundException,
-			DestinationAlreadyExistsException {
+			DestinationAlreadyExistsException, AccessDeniedException {
 		if (path.equals("/"))
 			throw new DestinationAlreadyExistsException();
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		namespaceLock.readLock().lock();
+		try {
+			addDirectory(path, DateUtils.getNow());
+		} finally {
+			namespaceLock.readLock().unlock();
+		}
+		if (!commitJournal())
+			throw new AccessDeniedException();
+	}
+	
+	/**
+	 * Adds a new directory; the namespace lock has to be held.
+	 * @param path the path
+	 * @param time the creation time
+	 * @return the new directory
+	 * @throws PathNotFoundException
+	 * @throws DestinationAlreadyExistsException
+	 */
+	private Directory addDirectory(String path, long time) throws PathNotFoundException,
+			DestinationAlreadyExistsException {
 		Directory dir = findParent(path);
-		if (dir.containsSubItem(path.substring(path.lastIndexOf('/') + 1)))
-			throw new DestinationAlreadyExistsException();
-		Directory newDir = new Directory(path);
-		newDir.setCreationTime(DateUtils.getNow());
-		newDir.setLastAccessTime(newDir.getCreationTime());
-		newDir.setLastModificationTime(newDir.getCreationTime());
-		dir.subdirs.add(newDir);
-		newDir.setParentDirectory(dir);
+		dir.lock.writeLock().lock();
+		try {
+			if (dir.containsSubItem(getName(path)))
+				throw new DestinationAlreadyExistsException();
+			Directory newDir = new Directory(path);
+			newDir.setCreationTime(time);
+			newDir.setLastAccessTime(time);
+			newDir.setLastModificationTime(time);
+			dir.addSubItem(newDir);
+			entryCount.incrementAndGet();
+			if (journal != null)
+				journal.logCreateDirectory(path, time);
+			return newDir;
+		} finally {
+			dir.lock.writeLock().unlock();
+		}
 	}
 
 	@Override
 	public int read(FileHandle fh, ByteBuffer buffer, long offset) {
 
 		InternalFileHandle Handle = (InternalFileHandle) fh.getObjHandle();
-		if (Handle.stream != null)
-		{
-			try {
-				byte[] bytbuffer = new byte[buffer.limit()];
-				Handle.stream.seek(offset);
-				int read = Handle.stream.read(bytbuffer);
-				buffer.put(bytbuffer, 0, read);
-				return read;
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		return 0;
+		return Handle.stream.read(offset, buffer);
 	}
 
 	@Override
-	public void setLength(FileHandle fh, long length) {
+	public void setLength(FileHandle fh, long length) throws DriveFullException {
 		InternalFileHandle Handle = (InternalFileHandle) fh.getObjHandle();
-		if (Handle.stream != null)
+		MemoryFsJournal journal = this.journal;
+		if (journal == null)
+		{
+			Handle.setLength(length);
+			return;
+		}
+		if (!isJournalWritable())
+			throw new DriveFullException();
+		File file = Handle.file;
+		synchronized (file)
 		{
 			Handle.setLength(length);
-		} 		
+			file.journalSequence = journal.logSetLength(file.id, length);
+		}
+		if (!commitJournal(file.journalSequence))
+			throw new DriveFullException();
 	}
 
 	@Override
-	public void write(FileHandle fh, ByteBuffer buffer, long offset) {
+	public void write(FileHandle fh, ByteBuffer buffer, long offset) throws DriveFullException {
 
 		InternalFileHandle Handle = (InternalFileHandle) fh.getObjHandle();
-		if (Handle.stream != null)
+		MemoryFsJournal journal = this.journal;
+		if (journal == null)
 		{
-			try {
-				byte[] r = new byte[buffer.limit()];
-				buffer.get(r);
-				if (offset > Handle.stream.getLength())
-					Handle.stream.setLength(offset);
-				Handle.stream.seek(offset);
-				Handle.stream.write(r);
-				Handle.file.setFileSize(Handle.stream.getLength());
-			} catch (IOException e) {
-				e.printStackTrace();
+			Handle.stream.write(offset, buffer);
+			synchronized (Handle.file)
+			{
+				Handle.file.contentVersion++;
 			}
-		} 		
+			return;
+		}
+		if (!isJournalWritable())
+			throw new DriveFullException();
+		// the changes of a file are applied and appended in the same order
+		File file = Handle.file;
+		ByteBuffer data = buffer.duplicate();
+		long sequence;
+		synchronized (file)
+		{
+			Handle.stream.write(offset, buffer);
+			file.contentVersion++;
+			sequence = journal.logWrite(file.id, offset, data);
+			file.journalSequence = sequence;
+		}
+		// the written data is buffered twice until it is committed
+		if (journal.isBufferFull() && !commitJournal(sequence))
+			throw new DriveFullException();
 	}
 
 	@Override
@@ -385,26 +1044,910 @@ public class MemoryFs extends FileSystem {
 	}
 
 	@Override
-	public void close(FileHandle fh) {
+	public void fsync(FileHandle fh, boolean dataOnly) throws DriveFullException {
+		flush(fh);
+		InternalFileHandle Handle = (InternalFileHandle) fh.getObjHandle();
+		//the meta data records of other entries (e.g. renaming the file) may have been logged later
+		boolean committed;
+		if (dataOnly)
+			committed = commitJournal(Handle.file.journalSequence);
+		else
+			committed = commitJournal();
+		if (!committed)
+			throw new DriveFullException();
+	}
+
+	@Override
+	public void close(FileHandle fh) throws DriveFullException {
 		InternalFileHandle Handle = (InternalFileHandle) fh.getObjHandle();
 		Handle.close();
+		if (!commitJournal(Handle.file.journalSequence))
+			throw new DriveFullException();
 	}
 
 	@Override
-	public void deleteFile(String file) throws PathNotFoundException {
-		EntityInfo info = find(file);
-		if (info == null)
-			throw new PathNotFoundException(file);
-		this.findParent(info).files.remove(info);
+	public void deleteFile(String file) throws PathNotFoundException, AccessDeniedException {
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		namespaceLock.readLock().lock();
+		try {
+			// a directory is not deleted
+			if (!unlink(file, false))
+				throw new AccessDeniedException();
+		} finally {
+			namespaceLock.readLock().unlock();
+		}
+		if (!commitJournal())
+			throw new AccessDeniedException();
 	}
 
 	@Override
 	public void deleteDirectoryRecursively(String directory)
-			throws PathNotFoundException {
-		EntityInfo info = find(directory);
-		if (info == null)
-			throw new PathNotFoundException(directory);
-		this.findParent(info).subdirs.remove(info);
+			throws PathNotFoundException, AccessDeniedException {
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		// a directory is deleted while holding the namespace lock exclusively
+		namespaceLock.writeLock().lock();
+		try {
+			// a file is not deleted
+			if (!unlink(directory, true))
+				throw new AccessDeniedException();
+		} finally {
+			namespaceLock.writeLock().unlock();
+		}
+		if (!commitJournal())
+			throw new AccessDeniedException();
+	}
+	
+	/**
+	 * Removes the entry from its directory; the namespace lock has to be held.
+	 * @param path the path
+	 * @param directory whether the entry has to be a directory; if so, the namespace lock has to be held exclusively
+	 * @return false if the entry is not of the expected type
+	 * @throws PathNotFoundException
+	 */
+	private boolean unlink(String path, boolean directory) throws PathNotFoundException {
+		Directory parent = findParent(path);
+		parent.lock.writeLock().lock();
+		try {
+			EntityInfo info = findSubItem(parent, getName(path));
+			if (info == null)
+				throw new PathNotFoundException(path);
+			if (directory != Directory.class.isInstance(info))
+				return false;
+			invalidatePath(path, info);
+			parent.removeSubItem(info);
+			entryCount.addAndGet(-markDeleted(info));
+			if (journal != null)
+				journal.logDelete(path);
+			return true;
+		} finally {
+			parent.lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Marks the file or every file below the directory as deleted.<br>
+	 * The content of a file is released as soon as no handle refers to it anymore.
+	 * @param info the deleted entry
+	 */
+	private long markDeleted(EntityInfo info) {
+		if (File.class.isInstance(info))
+		{
+			File file = (File)info;
+			synchronized (file)
+			{
+				file.deleted = true;
+				if (file.openHandles == 0)
+					file.content.release();
+			}
+			return 1;
+		}
+		Directory dir = (Directory)info;
+		long count = 1;
+		for (File file : dir.files.values())
+			count += markDeleted(file);
+		for (Directory subdir : dir.subdirs.values())
+			count += markDeleted(subdir);
+		return count;
+	}
+
+	private static long countEntries(Directory dir) {
+		long count = 1 + dir.files.size();
+		for (Directory subdir : dir.subdirs.values())
+			count += countEntries(subdir);
+		return count;
+	}
+
+	/**
+	 * Copies the directory and everything below it into this file system.<br>
+	 * The file contents are forked, so no content is copied.
+	 * The directories always keep their ids, so their inode numbers do not change.
+	 * @param source the directory to copy
+	 * @param keepIds whether the copies keep the journal ids of the files
+	 * @return the copy
+	 */
+	private Directory copyDirectory(Directory source, boolean keepIds) {
+		Directory copy = new Directory(source.getFullPath(), source.id);
+		copyTimes(source, copy);
+		for (File file : source.files.values())
+		{
+			File fileCopy = new File(file.getFullPath(), keepIds ? file.id : nextFileId.getAndIncrement());
+			copyTimes(file, fileCopy);
+			fileCopy.content = file.content.fork();
+			copy.addSubItem(fileCopy);
+		}
+		for (Directory subdir : source.subdirs.values())
+			copy.addSubItem(copyDirectory(subdir, keepIds));
+		return copy;
+	}
+	
+	private static void copyTimes(EntityInfo source, EntityInfo target) {
+		target.setCreationTime(source.getCreationTime());
+		target.setLastAccessTime(source.getLastAccessTime());
+		target.setLastModificationTime(source.getLastModificationTime());
+	}
+	
+	/**
+	 * Takes a snapshot of the whole file system.<br>
+	 * Only the directory tree is copied; the file contents are shared until they are written to.
+	 * Writes through open handles which run concurrently are either contained completely or not at all.
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		namespaceLock.writeLock().lock();
+		try {
+			return new Snapshot(copyDirectory(root, false), arena, chunkStore);
+		} finally {
+			namespaceLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Replaces the whole content of the file system by the snapshot.<br>
+	 * The snapshot stays valid and may be restored again.
+	 * Handles opened before remain usable, but refer to files which are not part of the file system anymore.
+	 * @param snapshot the snapshot, which has to use the same arena and chunk store as this file system
+	 */
+	public void restore(Snapshot snapshot) {
+		if (snapshot.arena != arena)
+			throw new IllegalArgumentException("The snapshot was taken from a file system with a different arena");
+		if (snapshot.chunkStore != chunkStore)
+			throw new IllegalArgumentException("The snapshot was taken from a file system with a different chunk store");
+		Directory newRoot;
+		synchronized (snapshot)
+		{
+			if (snapshot.released)
+				throw new IllegalStateException("The snapshot has been released");
+			newRoot = copyDirectory(snapshot.root, false);
+		}
+		replaceRoot(newRoot);
+	}
+	
+	/**
+	 * Replaces the whole directory tree
+	 * @param newRoot the new root directory
+	 */
+	private void replaceRoot(Directory newRoot) {
+		synchronized (checkpointLock)
+		{
+			namespaceLock.writeLock().lock();
+			try {
+				markDeleted(root);
+				root = newRoot;
+				entryCount.set(countEntries(newRoot) - 1);
+				pathCache.clear();
+				// the journal cannot describe the restore, so the checkpoint is written before anybody sees the new tree
+				if (journal != null)
+					writeCheckpoint(captureCheckpoint());
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not write the checkpoint", e);
+			} finally {
+				namespaceLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the whole file system to an image, which can be loaded by {@link #loadImage(Path)}.<br>
+	 * The image is written from a snapshot, so the file system may be changed meanwhile.
+	 * Chunks which only contain zeros are not written.
+	 * @param image the image file, which is overwritten
+	 * @throws IOException
+	 */
+	public void exportImage(Path image) throws IOException {
+		int chunkSize = getBlockSize();
+		Snapshot snapshot = snapshot();
+		FileChannel channel = FileChannel.open(image, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(metadata);
+			long end = exportDirectory(snapshot.root, out, channel, ByteBuffer.allocate(chunkSize), getImageDataStart(chunkSize));
+			out.writeByte(0);
+			out.flush();
+			CRC32 crc = new CRC32();
+			crc.update(metadata.toByteArray());
+			writeFully(channel, ByteBuffer.wrap(metadata.toByteArray()), end);
+			ByteBuffer header = ByteBuffer.allocate(IMAGEHEADERSIZE);
+			header.putInt(IMAGEMAGIC);
+			header.putInt(IMAGEVERSION);
+			header.putInt(chunkSize);
+			header.putLong(end);
+			header.putInt(metadata.size());
+			header.putLong(crc.getValue());
+			header.flip();
+			writeFully(channel, header, 0);
+		} finally {
+			channel.close();
+			snapshot.release();
+		}
+	}
+	
+	/**
+	 * Writes the chunks of the directory and everything below it to the image and its entries to the metadata
+	 * @param end the end of the chunks written so far
+	 * @return the new end of the chunks
+	 */
+	private static long exportDirectory(Directory dir, DataOutputStream out, FileChannel channel, ByteBuffer chunk, long end) throws IOException {
+		int chunkSize = chunk.capacity();
+		out.writeByte(1);
+		out.writeUTF(dir.getFullPath());
+		out.writeLong(dir.id);
+		out.writeLong(dir.getCreationTime());
+		out.writeLong(dir.getLastAccessTime());
+		out.writeLong(dir.getLastModificationTime());
+		for (File file : dir.files.values())
+		{
+			out.writeByte(2);
+			out.writeUTF(file.getFullPath());
+			out.writeLong(file.getCreationTime());
+			out.writeLong(file.getLastAccessTime());
+			out.writeLong(file.getLastModificationTime());
+			long length = file.content.getLength();
+			out.writeLong(length);
+			for (long index = 0; index * chunkSize < length; index++)
+			{
+				chunk.clear();
+				file.content.read(index * chunkSize, chunk);
+				// the last chunk is padded with zeros
+				while (chunk.hasRemaining())
+					chunk.put((byte) 0);
+				if (isZero(chunk.array(), chunkSize))
+					continue;
+				chunk.flip();
+				writeFully(channel, chunk, end);
+				out.writeLong(index);
+				out.writeLong(end);
+				end += chunkSize;
+			}
+			out.writeLong(-1);
+		}
+		for (Directory subdir : dir.subdirs.values())
+			end = exportDirectory(subdir, out, channel, chunk, end);
+		return end;
+	}
+	
+	/**
+	 * Returns the position of the first chunk within an image; the chunks start after the header, aligned to the chunk size
+	 */
+	private static long getImageDataStart(int chunkSize) {
+		return (IMAGEHEADERSIZE + chunkSize - 1) / chunkSize * (long) chunkSize;
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining())
+			position += channel.write(src, position);
+	}
+	
+	/**
+	 * Replaces the whole content of the file system by an image written by {@link #exportImage(Path)}.<br>
+	 * The chunks of the image are memory-mapped rather than read, so loading takes about the same time regardless of the size of the image.
+	 * A chunk is copied into the file system as soon as it is written to. The image must not be changed while the file system refers to it.<br>
+	 * Handles opened before remain usable, but refer to files which are not part of the file system anymore.
+	 * @param image the image file
+	 * @throws IOException the image could not be read or uses a different chunk size
+	 */
+	public void loadImage(Path image) throws IOException {
+		int chunkSize = getBlockSize();
+		Directory newRoot = null;
+		FileChannel channel = FileChannel.open(image, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(IMAGEHEADERSIZE);
+			readFully(channel, header, 0);
+			header.flip();
+			if (header.getInt() != IMAGEMAGIC)
+				throw new IOException("Not an image of a memory file system: " + image);
+			int version = header.getInt();
+			if (version < 1 || version > IMAGEVERSION)
+				throw new IOException("Not an image of a memory file system: " + image);
+			if (header.getInt() != chunkSize)
+				throw new IOException("The image uses a different chunk size than the file system: " + image);
+			long end = header.getLong();
+			ByteBuffer metadata = ByteBuffer.allocate(header.getInt());
+			long checksum = header.getLong();
+			readFully(channel, metadata, end);
+			CRC32 crc = new CRC32();
+			crc.update(metadata.array());
+			if (crc.getValue() != checksum)
+				throw new IOException("The image is corrupt: " + image);
+
+			// the chunks are mapped in segments, since a single mapping is limited to 2 GiB
+			long dataStart = getImageDataStart(chunkSize);
+			long segmentSize = (long) (IMAGESEGMENTSIZE / chunkSize) * chunkSize;
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((end - dataStart + segmentSize - 1) / segmentSize)];
+			Map<String, Directory> directories = new HashMap<String, Directory>();
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata.array()));
+			while (true)
+			{
+				byte type = in.readByte();
+				if (type == 0)
+					break;
+				String path = in.readUTF();
+				EntityInfo entry;
+				if (type == 1)
+					entry = version >= 2 ? new Directory(path, in.readLong()) : new Directory(path);
+				else if (type == 2)
+					entry = new File(path, nextFileId.getAndIncrement());
+				else
+					throw new IOException("The image is corrupt: " + image);
+				setTimes(entry, in.readLong(), in.readLong(), in.readLong());
+				if (newRoot == null)
+					newRoot = (Directory) entry;
+				else
+				{
+					Directory parent = directories.get(getParentPath(path));
+					if (parent == null)
+						throw new IOException("The image is corrupt: " + image);
+					parent.addSubItem(entry);
+				}
+				if (type == 1)
+				{
+					directories.put(path, (Directory) entry);
+					continue;
+				}
+				File file = (File) entry;
+				long length = in.readLong();
+				while (true)
+				{
+					long index = in.readLong();
+					if (index < 0)
+						break;
+					long position = in.readLong() - dataStart;
+					int segment = (int) (position / segmentSize);
+					if (segments[segment] == null)
+					{
+						long start = dataStart + segment * segmentSize;
+						segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, end - start));
+					}
+					ByteBuffer content = segments[segment].duplicate();
+					content.position((int) (position % segmentSize));
+					file.content.mapChunk(index, content);
+				}
+				file.content.setLength(length);
+			}
+		} catch (DriveFullException e) {
+			throw new IOException("The image does not fit into memory: " + image, e);
+		} catch (RuntimeException e) {
+			throw new IOException("The image is corrupt: " + image, e);
+		} finally {
+			// the mappings stay valid after the channel has been closed
+			channel.close();
+		}
+		if (newRoot == null)
+			throw new IOException("The image is corrupt: " + image);
+		replaceRoot(newRoot);
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining())
+		{
+			int read = channel.read(dst, position);
+			if (read < 0)
+				throw new EOFException();
+			position += read;
+		}
+	}
+	
+	private static String getParentPath(String path) {
+		int index = path.lastIndexOf('/');
+		return index == 0 ? "/" : path.substring(0, index);
+	}
+	
+	/**
+	 * Returns a new file system with the same content.<br>
+	 * Only the directory tree is copied; the file contents are shared until one of the file systems writes to them.
+	 * @return the new file system
+	 */
+	public MemoryFs fork() {
+		MemoryFs fork = new MemoryFs(pathCache.maxSize, arena, chunkStore, compressor, quota);
+		namespaceLock.writeLock().lock();
+		try {
+			fork.nextFileId.set(nextFileId.get());
+			fork.root = fork.copyDirectory(root, true);
+			fork.entryCount.set(entryCount.get());
+		} finally {
+			namespaceLock.writeLock().unlock();
+		}
+		return fork;
+	}
+
+	/**
+	 * Returns the store which shares chunks with equal content
+	 * @return the chunk store or null if deduplication is disabled
+	 */
+	public ChunkStore getChunkStore() {
+		return chunkStore;
+	}
+
+	/**
+	 * Returns the quota the memory of the file contents is accounted to
+	 * @return the quota
+	 */
+	public MemoryQuota getMemoryQuota() {
+		return quota;
+	}
+
+	/**
+	 * Returns the number of files and directories, not counting the root directory
+	 * @return the number of entries
+	 */
+	public long getEntryCount() {
+		return entryCount.get();
+	}
+
+	/**
+	 * Returns the compressor for cold chunks
+	 * @return the compressor or null if compression is disabled
+	 */
+	public ChunkCompressor getChunkCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * A copy of the tree which is written to a checkpoint
+	 */
+	private static class Checkpoint {
+		final Snapshot snapshot;
+		final long nextFileId;
+		final int generation;
+		
+		Checkpoint(Snapshot snapshot, long nextFileId, int generation) {
+			this.snapshot = snapshot;
+			this.nextFileId = nextFileId;
+			this.generation = generation;
+		}
+	}
+	
+	/**
+	 * Applies the records of the journal during recovery
+	 */
+	private class Replayer implements MemoryFsJournal.Listener {
+		private final Map<Long, File> files;
+		
+		Replayer(Map<Long, File> files) {
+			this.files = files;
+		}
+		
+		// files which have been deleted later on are ignored
+		private File getFile(long id) {
+			File file = files.get(id);
+			if (file == null || file.deleted)
+				return null;
+			return file;
+		}
+		
+		@Override
+		public void createFile(long id, String path, long time) throws IOException {
+			try {
+				files.put(id, addFile(path, id, time));
+			} catch (PathNotFoundException e) {
+				throw new IOException("The journal does not match the checkpoint", e);
+			} catch (DestinationAlreadyExistsException e) {
+				throw new IOException("The journal does not match the checkpoint", e);
+			}
+			if (id >= nextFileId.get())
+				nextFileId.set(id + 1);
+		}
+		
+		@Override
+		public void createDirectory(String path, long time) throws IOException {
+			try {
+				addDirectory(path, time);
+			} catch (PathNotFoundException e) {
+				throw new IOException("The journal does not match the checkpoint", e);
+			} catch (DestinationAlreadyExistsException e) {
+				throw new IOException("The journal does not match the checkpoint", e);
+			}
+		}
+		
+		@Override
+		public void rename(String from, String to) throws IOException {
+			try {
+				move(from, to, true);
+			} catch (PathNotFoundException e) {
+				throw new IOException("The journal does not match the checkpoint", e);
+			} catch (DestinationAlreadyExistsException e) {
+				throw new IOException("The journal does not match the checkpoint", e);
+			}
+		}
+		
+		@Override
+		public void delete(String path) throws IOException {
+			try {
+				if (!unlink(path, true))
+					unlink(path, false);
+			} catch (PathNotFoundException e) {
+				throw new IOException("The journal does not match the checkpoint", e);
+			}
+		}
+		
+		@Override
+		public void write(long id, long offset, ByteBuffer data) throws IOException {
+			File file = getFile(id);
+			if (file == null)
+				return;
+			try {
+				file.content.write(offset, data);
+			} catch (DriveFullException e) {
+				throw new IOException("The journal does not fit into memory", e);
+			}
+		}
+		
+		@Override
+		public void setLength(long id, long length) throws IOException {
+			File file = getFile(id);
+			if (file == null)
+				return;
+			try {
+				file.content.setLength(length);
+			} catch (DriveFullException e) {
+				throw new IOException("The journal does not fit into memory", e);
+			}
+		}
+		
+		@Override
+		public void setFileTimes(long id, long creationTime, long lastAccessTime, long lastModificationTime) {
+			File file = getFile(id);
+			if (file != null)
+				setTimes(file, creationTime, lastAccessTime, lastModificationTime);
+		}
+		
+		@Override
+		public void setDirectoryTimes(String path, long creationTime, long lastAccessTime, long lastModificationTime) {
+			EntityInfo info;
+			try {
+				info = find(path);
+			} catch (PathNotFoundException e) {
+				// the directory has been deleted or renamed later on
+				return;
+			}
+			if (Directory.class.isInstance(info))
+				setTimes(info, creationTime, lastAccessTime, lastModificationTime);
+		}
+	}
+	
+	private static void setTimes(EntityInfo info, long creationTime, long lastAccessTime, long lastModificationTime) {
+		info.setCreationTime(creationTime);
+		info.setLastAccessTime(lastAccessTime);
+		info.setLastModificationTime(lastModificationTime);
+	}
+	
+	/**
+	 * Recovers the content from the journal directory and starts appending to the journal
+	 * @param directory the journal directory
+	 * @throws IOException
+	 */
+	private void openJournal(java.io.File directory) throws IOException {
+		MemoryFsJournal opened = new MemoryFsJournal(directory);
+		final Map<Long, File> files = new HashMap<Long, File>();
+		opened.recover(new MemoryFsJournal.CheckpointLoader() {
+			@Override
+			public void load(java.io.File checkpoint) throws IOException {
+				if (checkpoint != null)
+					loadCheckpoint(checkpoint, files);
+			}
+		}, new Replayer(files));
+		journal = opened;
+	}
+	
+	/**
+	 * Appends the times of the entry to the journal
+	 * @param info the file or directory
+	 */
+	private void logTimes(EntityInfo info) {
+		MemoryFsJournal journal = this.journal;
+		if (journal == null)
+			return;
+		if (File.class.isInstance(info))
+		{
+			File file = (File) info;
+			file.journalSequence = journal.logFileTimes(file.id, file.getCreationTime(), file.getLastAccessTime(), file.getLastModificationTime());
+			return;
+		}
+		// the path must not change until the record has been appended
+		namespaceLock.readLock().lock();
+		try {
+			journal.logDirectoryTimes(info.getFullPath(), info.getCreationTime(), info.getLastAccessTime(), info.getLastModificationTime());
+		} finally {
+			namespaceLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Checks whether changes can be journaled before they are applied.<br>
+	 * While the journal has failed, a checkpoint is retried from time to time, which repairs the journal if it succeeds.
+	 * @return false if the journal has failed
+	 */
+	private boolean isJournalWritable() {
+		MemoryFsJournal journal = this.journal;
+		if (journal == null || !journal.isFailed())
+			return true;
+		long now = System.currentTimeMillis();
+		if (now >= nextCheckpointRetry)
+		{
+			nextCheckpointRetry = now + CHECKPOINTRETRYDELAY;
+			startCheckpoint(journal);
+		}
+		return false;
+	}
+	
+	/**
+	 * Makes every record appended so far durable
+	 * @return false if the journal has failed
+	 */
+	private boolean commitJournal() {
+		MemoryFsJournal journal = this.journal;
+		if (journal == null)
+			return true;
+		return commitJournal(journal.getLastSequence());
+	}
+	
+	/**
+	 * Makes the records up to the sequence number durable and starts a checkpoint if the journal has grown too large
+	 * @param sequence the sequence number
+	 * @return false if the journal has failed; the change has been applied, but it is not durable
+	 */
+	private boolean commitJournal(long sequence) {
+		MemoryFsJournal journal = this.journal;
+		if (journal == null)
+			return true;
+		try {
+			journal.commit(sequence);
+		} catch (IOException e) {
+			// the journal keeps the failure and rejects further changes
+			return false;
+		}
+		if (journal.getJournalSize() > DEFAULTCHECKPOINTSIZE)
+			startCheckpoint(journal);
+		return true;
+	}
+	
+	/**
+	 * Writes a checkpoint in the background unless one is running already.<br>
+	 * If it fails, the journal is failed, since it would grow without bound otherwise.
+	 * @param journal the journal
+	 */
+	private void startCheckpoint(final MemoryFsJournal journal) {
+		if (!checkpointRunning.compareAndSet(false, true))
+			return;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					journal.fail(e);
+				} finally {
+					checkpointRunning.set(false);
+				}
+			}
+		}, "MemoryFs checkpoint");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Writes the whole file system to a checkpoint, so the journal up to now is not needed anymore.<br>
+	 * The file system is only blocked while its tree is copied; the contents are written afterwards.
+	 * This happens automatically whenever the journal grows too large.
+	 * @throws IOException the checkpoint could not be written
+	 */
+	public void checkpoint() throws IOException {
+		if (journal == null)
+			return;
+		synchronized (checkpointLock)
+		{
+			Checkpoint checkpoint;
+			namespaceLock.writeLock().lock();
+			try {
+				if (journal == null)
+					return;
+				checkpoint = captureCheckpoint();
+			} finally {
+				namespaceLock.writeLock().unlock();
+			}
+			writeCheckpoint(checkpoint);
+		}
+	}
+	
+	/**
+	 * Copies the tree and starts the next journal; the namespace write lock has to be held.
+	 * @return the checkpoint to write
+	 * @throws IOException
+	 */
+	private Checkpoint captureCheckpoint() throws IOException {
+		// writes append their record while holding the lock of the file, so nothing is appended in between
+		synchronized (journal.getCommitLock())
+		{
+			synchronized (journal)
+			{
+				Snapshot snapshot = new Snapshot(copyDirectory(root, true), arena, chunkStore);
+				return new Checkpoint(snapshot, nextFileId.get(), journal.rotate());
+			}
+		}
+	}
+	
+	/**
+	 * Writes the checkpoint and deletes the journals it replaces
+	 * @param checkpoint the checkpoint
+	 * @throws IOException
+	 */
+	private void writeCheckpoint(Checkpoint checkpoint) throws IOException {
+		try {
+			FileOutputStream file = new FileOutputStream(journal.getTemporaryCheckpointFile(checkpoint.generation));
+			try {
+				CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+				DataOutputStream out = new DataOutputStream(checked);
+				out.writeInt(CHECKPOINTMAGIC);
+				out.writeInt(CHECKPOINTVERSION);
+				out.writeLong(checkpoint.nextFileId);
+				writeCheckpointDirectory(out, checkpoint.snapshot.root, new byte[1 << 16]);
+				out.writeByte(0);
+				out.writeLong(checked.getChecksum().getValue());
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+			journal.completeCheckpoint(checkpoint.generation);
+		} finally {
+			checkpoint.snapshot.release();
+		}
+	}
+	
+	private static void writeCheckpointDirectory(DataOutputStream out, Directory dir, byte[] piece) throws IOException {
+		out.writeByte(1);
+		out.writeUTF(dir.getFullPath());
+		out.writeLong(dir.getCreationTime());
+		out.writeLong(dir.getLastAccessTime());
+		out.writeLong(dir.getLastModificationTime());
+		for (File file : dir.files.values())
+		{
+			out.writeByte(2);
+			out.writeUTF(file.getFullPath());
+			out.writeLong(file.id);
+			out.writeLong(file.getCreationTime());
+			out.writeLong(file.getLastAccessTime());
+			out.writeLong(file.getLastModificationTime());
+			long length = file.content.getLength();
+			out.writeLong(length);
+			long offset = 0;
+			while (offset < length)
+			{
+				int read = file.content.read(offset, ByteBuffer.wrap(piece));
+				if (read <= 0)
+					break;
+				// holes are not written
+				if (!isZero(piece, read))
+				{
+					out.writeLong(offset);
+					out.writeInt(read);
+					out.write(piece, 0, read);
+				}
+				offset += read;
+			}
+			out.writeLong(-1);
+		}
+		for (Directory subdir : dir.subdirs.values())
+			writeCheckpointDirectory(out, subdir, piece);
+	}
+	
+	private static boolean isZero(byte[] data, int length) {
+		for (int i = 0; i < length; i++)
+			if (data[i] != 0)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Loads the content of a checkpoint into the empty file system
+	 * @param checkpoint the checkpoint file
+	 * @param files receives the files by their journal id
+	 * @throws IOException
+	 */
+	private void loadCheckpoint(java.io.File checkpoint, Map<Long, File> files) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(checkpoint), 1 << 16), new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt() != CHECKPOINTMAGIC || in.readInt() != CHECKPOINTVERSION)
+				throw new IOException("Not a checkpoint of a memory file system: " + checkpoint);
+			nextFileId.set(in.readLong());
+			byte[] piece = new byte[0];
+			while (true)
+			{
+				byte type = in.readByte();
+				if (type == 0)
+					break;
+				String path = in.readUTF();
+				if (type == 1)
+				{
+					EntityInfo dir = path.equals("/") ? root : addDirectory(path, 0);
+					setTimes(dir, in.readLong(), in.readLong(), in.readLong());
+				}
+				else if (type == 2)
+				{
+					File file = addFile(path, in.readLong(), 0);
+					setTimes(file, in.readLong(), in.readLong(), in.readLong());
+					long length = in.readLong();
+					while (true)
+					{
+						long offset = in.readLong();
+						if (offset < 0)
+							break;
+						int read = in.readInt();
+						if (piece.length < read)
+							piece = new byte[read];
+						in.readFully(piece, 0, read);
+						file.content.write(offset, ByteBuffer.wrap(piece, 0, read));
+					}
+					file.content.setLength(length);
+					files.put(file.id, file);
+				}
+				else
+					throw new IOException("Unknown entry in checkpoint " + checkpoint);
+			}
+			long expected = checked.getChecksum().getValue();
+			if (in.readLong() != expected)
+				throw new IOException("The checkpoint is corrupt: " + checkpoint);
+		} catch (PathNotFoundException e) {
+			throw new IOException("The checkpoint is corrupt: " + checkpoint, e);
+		} catch (DestinationAlreadyExistsException e) {
+			throw new IOException("The checkpoint is corrupt: " + checkpoint, e);
+		} catch (DriveFullException e) {
+			throw new IOException("The checkpoint does not fit into memory: " + checkpoint, e);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Commits and closes the journal.<br>
+	 * Afterwards, changes are not persisted anymore.
+	 * @throws IOException
+	 */
+	public void closeJournal() throws IOException {
+		synchronized (checkpointLock)
+		{
+			MemoryFsJournal closed;
+			namespaceLock.writeLock().lock();
+			try {
+				closed = journal;
+				journal = null;
+			} finally {
+				namespaceLock.writeLock().unlock();
+			}
+			if (closed != null)
+				closed.close();
+		}
+	}
+	
+	@Override
+	public void afterUnmounting() {
+		try {
+			closeJournal();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	@Override
@@ -420,31 +1963,40 @@ public class MemoryFs extends FileSystem {
 
 	@Override
 	public void setLastAccessTime(String path, long atime)
-			throws PathNotFoundException {
-		EntityInfo info = find(path);
-		if (info == null)
-			throw new PathNotFoundException(path);
+			throws PathNotFoundException, AccessDeniedException {
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		EntityInfo info = findExisting(path);
 		info.setLastAccessTime(atime);
+		logTimes(info);
+		if (!commitJournal())
+			throw new AccessDeniedException();
 	}
 
 
 	@Override
 	public void setLastModificationTime(String path, long mtime)
-			throws PathNotFoundException {
-		EntityInfo info = find(path);
-		if (info == null)
-			throw new PathNotFoundException(path);
+			throws PathNotFoundException, AccessDeniedException {
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		EntityInfo info = findExisting(path);
 		info.setLastModificationTime(mtime);
+		logTimes(info);
+		if (!commitJournal())
+			throw new AccessDeniedException();
 	}
 
 
 	@Override
 	public void setCreationTime(String path, long creationTime)
-			throws PathNotFoundException {
-		EntityInfo info = find(path);
-		if (info == null)
-			throw new PathNotFoundException(path);
+			throws PathNotFoundException, AccessDeniedException {
+		if (!isJournalWritable())
+			throw new AccessDeniedException();
+		EntityInfo info = findExisting(path);
 		info.setCreationTime(creationTime);
+		logTimes(info);
+		if (!commitJournal())
+			throw new AccessDeniedException();
 	}
 
 
@@ -455,25 +2007,42 @@ public class MemoryFs extends FileSystem {
 
 
 	public int getBlockSize() {
+		if (arena != null)
+			return arena.getChunkSize();
 		return MemoryStream.DEFAULTCHUNKSIZE;
 	}
 	
 	@Override
 	public long getTotalBlockCount() {
-		long l = Runtime.getRuntime().totalMemory();
-		if (l == Long.MAX_VALUE)
-			l = Runtime.getRuntime().maxMemory();
-		return (int) (l / getBlockSize());
+		return quota.getCapacity() / getBlockSize();
 	}
 
 	@Override
 	public long getFreeBlockCount() {
-		long l = (Runtime.getRuntime().freeMemory() / getBlockSize());
-		long b = getTotalBlockCount();
-		if (l < b)
-			return b;
-		else
-			return l;
+		long free = quota.getFreeBytes();
+		if (arena != null)
+			free = Math.min(free, arena.getFreeBytes());
+		return free / getBlockSize();
+	}
+	
+	@Override
+	public int getTotalFilesCount() {
+		return Integer.MAX_VALUE;
+	}
+	
+	@Override
+	public int getFilesFreeCount() {
+		return (int) Math.max(0, Integer.MAX_VALUE - entryCount.get());
+	}
+	
+	@Override
+	public long getInodeNumber(EntityInfo info) {
+		// files and directories are numbered separately
+		if (File.class.isInstance(info))
+			return ((File) info).id * 2 + 1;
+		if (Directory.class.isInstance(info))
+			return ((Directory) info).id * 2 + 2;
+		return 0;
 	}
 	
 	@Override
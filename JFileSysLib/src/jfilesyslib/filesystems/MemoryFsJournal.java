@@ -0,0 +1,590 @@
+package jfilesyslib.filesystems;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/**
+ * The write-ahead journal of a persistent {@link MemoryFs}.<br>
+ * Records are appended to an in-memory buffer. {@link #commit(long)} writes and forces the buffer,
+ * so concurrent callers share a single write and force (group commit).
+ * Writers commit as soon as the buffer exceeds {@link #FLUSHTHRESHOLD}, so it stays small.<br>
+ * If writing or forcing fails, the journal is failed: the buffered records are lost, so every later commit is rejected.<br>
+ * The journal directory holds numbered generations: <i>checkpoint-N</i> contains the whole file system
+ * and <i>journal-N</i> the operations after it. A generation is complete once its checkpoint has been renamed into place.<br>
+ * Every record carries its length and checksum, so a torn record at the end of the journal is detected and dropped.<br>
+ * It is <i>thread safe</i>.
+ * @author Marc Miltenberger
+ */
+class MemoryFsJournal {
+	static final byte CREATEFILE = 1;
+	static final byte CREATEDIRECTORY = 2;
+	static final byte RENAME = 3;
+	static final byte DELETE = 4;
+	static final byte WRITE = 5;
+	static final byte SETLENGTH = 6;
+	static final byte FILETIMES = 7;
+	static final byte DIRECTORYTIMES = 8;
+
+	private static final String CHECKPOINT = "checkpoint-";
+	private static final String JOURNAL = "journal-";
+	private static final int HEADERSIZE = 8;
+	/**
+	 * The size of the buffer, from which on it should be committed
+	 */
+	static final int FLUSHTHRESHOLD = 4 << 20;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Receives the records of a journal during recovery
+	 * @author Marc Miltenberger
+	 */
+	interface Listener {
+		void createFile(long id, String path, long time) throws IOException;
+		void createDirectory(String path, long time) throws IOException;
+		void rename(String from, String to) throws IOException;
+		void delete(String path) throws IOException;
+		void write(long id, long offset, ByteBuffer data) throws IOException;
+		void setLength(long id, long length) throws IOException;
+		void setFileTimes(long id, long creationTime, long lastAccessTime, long lastModificationTime) throws IOException;
+		void setDirectoryTimes(String path, long creationTime, long lastAccessTime, long lastModificationTime) throws IOException;
+	}
+
+	/**
+	 * A byte array output stream which exposes its buffer and encodes the record fields
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(64 * 1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		void putInt(int position, int value) {
+			buf[position] = (byte) (value >>> 24);
+			buf[position + 1] = (byte) (value >>> 16);
+			buf[position + 2] = (byte) (value >>> 8);
+			buf[position + 3] = (byte) value;
+		}
+
+		void writeInt(int value) {
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		void writeLong(long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		void writeString(String value) {
+			byte[] encoded = value.getBytes(UTF8);
+			writeInt(encoded.length);
+			write(encoded, 0, encoded.length);
+		}
+
+		/**
+		 * Writes the remaining part of <i>data</i> without consuming it
+		 */
+		void write(ByteBuffer data) {
+			int length = data.remaining();
+			if (data.hasArray())
+				write(data.array(), data.arrayOffset() + data.position(), length);
+			else
+			{
+				ensureCapacity(count + length);
+				data.duplicate().get(buf, count, length);
+				count += length;
+			}
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] encoded = new byte[in.readInt()];
+		in.readFully(encoded);
+		return new String(encoded, UTF8);
+	}
+
+	private final File directory;
+	private int generation;
+	private FileChannel channel;
+	private RecordBuffer buffer = new RecordBuffer();
+	private RecordBuffer spare = new RecordBuffer();
+	private final CRC32 crc = new CRC32();
+	private int recordStart;
+	private long appended = 0;
+	private volatile long durable = 0;
+	private long journalSize;
+	private final Object commitLock = new Object();
+	// written while holding the commit lock
+	private volatile IOException failure;
+	// whether buffered records have been dropped by a failed write; guarded by the commit lock
+	private boolean recordsLost;
+	// the last record covered by the checkpoint of the current generation
+	private long rotatedSequence;
+
+	/**
+	 * Opens the journal directory; {@link #recover(CheckpointLoader, Listener)} has to be called before anything is appended.
+	 * @param directory the journal directory, which is created if necessary
+	 * @throws IOException
+	 */
+	MemoryFsJournal(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create the journal directory " + directory);
+		this.directory = directory;
+	}
+
+	/**
+	 * Loads the latest complete checkpoint and replays every journal from its generation on.<br>
+	 * Afterwards, records are appended to the last journal.
+	 * @param loader loads the checkpoint file, which may be null
+	 * @param listener receives the journal records
+	 * @throws IOException
+	 */
+	synchronized void recover(CheckpointLoader loader, Listener listener) throws IOException {
+		int checkpointGeneration = -1;
+		int lastGeneration = 0;
+		String[] names = directory.list();
+		for (String name : names)
+		{
+			if (name.startsWith(CHECKPOINT) && !name.endsWith(".tmp"))
+				checkpointGeneration = Math.max(checkpointGeneration, parseGeneration(name, CHECKPOINT));
+			if (name.startsWith(JOURNAL))
+				lastGeneration = Math.max(lastGeneration, parseGeneration(name, JOURNAL));
+		}
+		int first = Math.max(checkpointGeneration, 0);
+		loader.load(checkpointGeneration >= 0 ? getCheckpointFile(checkpointGeneration) : null);
+		lastGeneration = Math.max(lastGeneration, first);
+		long validLength = 0;
+		for (int g = first; g <= lastGeneration; g++)
+		{
+			File journal = getJournalFile(g);
+			validLength = 0;
+			if (journal.exists())
+				validLength = replay(journal, listener);
+		}
+		generation = lastGeneration;
+		RandomAccessFile file = new RandomAccessFile(getJournalFile(generation), "rw");
+		channel = file.getChannel();
+		// drop a torn record at the end
+		channel.truncate(validLength);
+		channel.position(validLength);
+		journalSize = validLength;
+		deleteOlderThan(first);
+	}
+
+	/**
+	 * Loads a checkpoint
+	 * @author Marc Miltenberger
+	 */
+	interface CheckpointLoader {
+		void load(File checkpoint) throws IOException;
+	}
+
+	private static int parseGeneration(String name, String prefix) {
+		try {
+			return Integer.parseInt(name.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	File getCheckpointFile(int generation) {
+		return new File(directory, CHECKPOINT + generation);
+	}
+
+	private File getJournalFile(int generation) {
+		return new File(directory, JOURNAL + generation);
+	}
+
+	/**
+	 * Replays the journal
+	 * @return the length of the valid part of the journal
+	 */
+	private long replay(File journal, Listener listener) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+		long valid = 0;
+		byte[] payload = new byte[64 * 1024];
+		CRC32 checksum = new CRC32();
+		try {
+			while (true)
+			{
+				int length;
+				int expected;
+				try {
+					length = in.readInt();
+					expected = in.readInt();
+					if (length <= 0)
+						break;
+					if (payload.length < length)
+						payload = new byte[length];
+					in.readFully(payload, 0, length);
+				} catch (EOFException e) {
+					break;
+				}
+				checksum.reset();
+				checksum.update(payload, 0, length);
+				if ((int) checksum.getValue() != expected)
+					break;
+				apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)), payload, listener);
+				valid += HEADERSIZE + length;
+			}
+		} finally {
+			in.close();
+		}
+		return valid;
+	}
+
+	private static void apply(DataInputStream record, byte[] payload, Listener listener) throws IOException {
+		byte type = record.readByte();
+		switch (type)
+		{
+		case CREATEFILE:
+			listener.createFile(record.readLong(), readString(record), record.readLong());
+			break;
+		case CREATEDIRECTORY:
+			listener.createDirectory(readString(record), record.readLong());
+			break;
+		case RENAME:
+			listener.rename(readString(record), readString(record));
+			break;
+		case DELETE:
+			listener.delete(readString(record));
+			break;
+		case WRITE:
+		{
+			long id = record.readLong();
+			long offset = record.readLong();
+			int length = record.readInt();
+			// id, offset, length and the type precede the data
+			listener.write(id, offset, ByteBuffer.wrap(payload, 21, length));
+			break;
+		}
+		case SETLENGTH:
+			listener.setLength(record.readLong(), record.readLong());
+			break;
+		case FILETIMES:
+			listener.setFileTimes(record.readLong(), record.readLong(), record.readLong(), record.readLong());
+			break;
+		case DIRECTORYTIMES:
+			listener.setDirectoryTimes(readString(record), record.readLong(), record.readLong(), record.readLong());
+			break;
+		default:
+			throw new IOException("Unknown journal record type " + type);
+		}
+	}
+
+	private RecordBuffer beginRecord(byte type) {
+		recordStart = buffer.size();
+		buffer.writeLong(0);
+		buffer.write(type);
+		return buffer;
+	}
+
+	private long endRecord() {
+		int length = buffer.size() - recordStart - HEADERSIZE;
+		crc.reset();
+		crc.update(buffer.array(), recordStart + HEADERSIZE, length);
+		buffer.putInt(recordStart, length);
+		buffer.putInt(recordStart + 4, (int) crc.getValue());
+		return ++appended;
+	}
+
+	synchronized long logCreateFile(long id, String path, long time) {
+		RecordBuffer out = beginRecord(CREATEFILE);
+		out.writeLong(id);
+		out.writeString(path);
+		out.writeLong(time);
+		return endRecord();
+	}
+
+	synchronized long logCreateDirectory(String path, long time) {
+		RecordBuffer out = beginRecord(CREATEDIRECTORY);
+		out.writeString(path);
+		out.writeLong(time);
+		return endRecord();
+	}
+
+	synchronized long logRename(String from, String to) {
+		RecordBuffer out = beginRecord(RENAME);
+		out.writeString(from);
+		out.writeString(to);
+		return endRecord();
+	}
+
+	synchronized long logDelete(String path) {
+		RecordBuffer out = beginRecord(DELETE);
+		out.writeString(path);
+		return endRecord();
+	}
+
+	/**
+	 * Appends a write; the remaining part of <i>data</i> is not consumed.
+	 */
+	synchronized long logWrite(long id, long offset, ByteBuffer data) {
+		RecordBuffer out = beginRecord(WRITE);
+		out.writeLong(id);
+		out.writeLong(offset);
+		out.writeInt(data.remaining());
+		out.write(data);
+		return endRecord();
+	}
+
+	synchronized long logSetLength(long id, long length) {
+		RecordBuffer out = beginRecord(SETLENGTH);
+		out.writeLong(id);
+		out.writeLong(length);
+		return endRecord();
+	}
+
+	synchronized long logFileTimes(long id, long creationTime, long lastAccessTime, long lastModificationTime) {
+		RecordBuffer out = beginRecord(FILETIMES);
+		out.writeLong(id);
+		out.writeLong(creationTime);
+		out.writeLong(lastAccessTime);
+		out.writeLong(lastModificationTime);
+		return endRecord();
+	}
+
+	synchronized long logDirectoryTimes(String path, long creationTime, long lastAccessTime, long lastModificationTime) {
+		RecordBuffer out = beginRecord(DIRECTORYTIMES);
+		out.writeString(path);
+		out.writeLong(creationTime);
+		out.writeLong(lastAccessTime);
+		out.writeLong(lastModificationTime);
+		return endRecord();
+	}
+
+	/**
+	 * Returns whether the buffered records should be committed
+	 * @return true if the buffer exceeds the threshold
+	 */
+	synchronized boolean isBufferFull() {
+		return buffer.size() >= FLUSHTHRESHOLD;
+	}
+
+	/**
+	 * Returns the sequence number of the last appended record
+	 * @return the sequence number
+	 */
+	synchronized long getLastSequence() {
+		return appended;
+	}
+
+	/**
+	 * Makes every record up to <i>sequence</i> durable.<br>
+	 * If another thread is committing, the calling thread waits and usually finds its record committed afterwards.
+	 * @param sequence the sequence number returned when the record has been appended
+	 * @throws IOException the records could not be written, or the journal has failed before
+	 */
+	void commit(long sequence) throws IOException {
+		if (durable >= sequence)
+			return;
+		synchronized (commitLock)
+		{
+			if (durable >= sequence)
+				return;
+			writeBuffer();
+		}
+	}
+
+	/**
+	 * Returns whether the journal has failed.<br>
+	 * A failed journal does not commit anything until the next checkpoint has been completed.
+	 * @return true if the journal has failed
+	 */
+	boolean isFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Fails the journal, e.g. because the checkpoint which keeps it small could not be written
+	 * @param cause the cause
+	 */
+	void fail(IOException cause) {
+		synchronized (commitLock)
+		{
+			if (failure == null)
+				failure = cause;
+		}
+	}
+
+	/**
+	 * Writes and forces the buffered records; the commit lock has to be held.<br>
+	 * If this fails, the journal is failed, since the records cannot be written again reliably:
+	 * a failed force may already have dropped the dirty pages.
+	 */
+	private void writeBuffer() throws IOException {
+		// the records stay buffered until the next checkpoint
+		if (failure != null)
+			throw new IOException("The journal has failed before", failure);
+		flushBuffer();
+	}
+
+	/**
+	 * Writes and forces the buffered records regardless of an earlier failure; the commit lock has to be held.
+	 */
+	private void flushBuffer() throws IOException {
+		RecordBuffer toWrite;
+		long last;
+		FileChannel target;
+		synchronized (this)
+		{
+			toWrite = buffer;
+			buffer = spare;
+			spare = null;
+			last = appended;
+			target = channel;
+		}
+		int size = toWrite.size();
+		try {
+			ByteBuffer content = ByteBuffer.wrap(toWrite.array(), 0, size);
+			while (content.hasRemaining())
+				target.write(content);
+			target.force(false);
+		} catch (IOException e) {
+			if (failure == null)
+				failure = e;
+			recordsLost = true;
+			throw e;
+		} finally {
+			synchronized (this)
+			{
+				toWrite.reset();
+				spare = toWrite;
+			}
+		}
+		synchronized (this)
+		{
+			journalSize += size;
+		}
+		durable = last;
+	}
+
+	/**
+	 * Returns the number of bytes written to the current journal
+	 * @return the size in bytes
+	 */
+	synchronized long getJournalSize() {
+		return journalSize;
+	}
+
+	/**
+	 * Returns the lock which has to be held while the journal is rotated
+	 * @return the lock
+	 */
+	Object getCommitLock() {
+		return commitLock;
+	}
+
+	/**
+	 * Makes every appended record durable and starts the next generation.<br>
+	 * If records have been lost, the current journal is left as it is; the checkpoint of the next generation replaces it.
+	 * The commit lock and the lock of the journal have to be held.
+	 * @return the new generation, whose checkpoint has to be written next
+	 * @throws IOException
+	 */
+	int rotate() throws IOException {
+		if (recordsLost)
+			buffer.reset();
+		else
+			flushBuffer();
+		rotatedSequence = appended;
+		channel.close();
+		generation++;
+		channel = new RandomAccessFile(getJournalFile(generation), "rw").getChannel();
+		channel.truncate(0);
+		journalSize = 0;
+		return generation;
+	}
+
+	/**
+	 * Returns the file the checkpoint of the generation is written to before it is renamed into place
+	 */
+	File getTemporaryCheckpointFile(int generation) {
+		return new File(directory, CHECKPOINT + generation + ".tmp");
+	}
+
+	/**
+	 * Renames the written checkpoint into place and deletes the older generations.<br>
+	 * A failed journal works again afterwards, since the checkpoint contains every record it has not written.
+	 * @param generation the generation of the checkpoint
+	 * @throws IOException
+	 */
+	void completeCheckpoint(int generation) throws IOException {
+		File checkpoint = getCheckpointFile(generation);
+		if (!getTemporaryCheckpointFile(generation).renameTo(checkpoint))
+			throw new IOException("Could not rename the checkpoint to " + checkpoint);
+		deleteOlderThan(generation);
+		synchronized (commitLock)
+		{
+			synchronized (this)
+			{
+				if (failure == null || generation != this.generation)
+					return;
+				failure = null;
+				recordsLost = false;
+				if (durable < rotatedSequence)
+					durable = rotatedSequence;
+			}
+		}
+	}
+
+	/**
+	 * Deletes the checkpoints and journals of older generations; the checkpoints are serialized by the caller.
+	 */
+	private void deleteOlderThan(int generation) {
+		for (String name : directory.list())
+		{
+			int g = -1;
+			if (name.startsWith(CHECKPOINT))
+				g = parseGeneration(name, CHECKPOINT);
+			else if (name.startsWith(JOURNAL))
+				g = parseGeneration(name, JOURNAL);
+			else
+				continue;
+			// checkpoints which have not been completed are left over from a crash
+			if (g < generation || name.endsWith(".tmp"))
+				new File(directory, name).delete();
+		}
+	}
+
+	/**
+	 * Commits every record and closes the journal
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		synchronized (commitLock)
+		{
+			try {
+				writeBuffer();
+			} finally {
+				synchronized (this)
+				{
+					channel.close();
+				}
+			}
+		}
+	}
+}
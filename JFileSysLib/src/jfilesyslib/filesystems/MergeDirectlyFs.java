@@ -372,6 +372,14 @@ public class MergeDirectlyFs extends FullFileSystem {
 			master.flush(handle);
 	}
 
+	@Override
+	public void fsync(FileHandle handle, boolean dataOnly) throws DriveFullException {
+		if (slaveFileHandles.contains(handle))
+			slave.fsync(handle, dataOnly);
+		else
+			master.fsync(handle, dataOnly);
+	}
+
 	@Override
 	public void close(FileHandle handle) throws DriveFullException {
 		if (slaveFileHandles.remove(handle))
@@ -3,23 +3,41 @@ package jfilesyslib.filesystems;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import jfilesyslib.Environment;
 import jfilesyslib.FileSystem;
+import jfilesyslib.data.DirectoryEntry;
 import jfilesyslib.data.DirectoryInfo;
 import jfilesyslib.data.EntityInfo;
 import jfilesyslib.data.FileHandle;
 import jfilesyslib.data.FileInfo;
+import jfilesyslib.data.SymbolicLinkInfo;
 import jfilesyslib.data.UnixPermissions;
+import jfilesyslib.data.WindowsAttributes;
 import jfilesyslib.exceptions.AccessDeniedException;
 import jfilesyslib.exceptions.DestinationAlreadyExistsException;
 import jfilesyslib.exceptions.NotADirectoryException;
 import jfilesyslib.exceptions.NotAFileException;
 import jfilesyslib.exceptions.PathNotFoundException;
+import jfilesyslib.exceptions.SourceAlreadyExistsException;
 
 
 /**
@@ -29,6 +47,8 @@ import jfilesyslib.exceptions.PathNotFoundException;
 public class MirrorFs extends FileSystem {
 	private File baseRoot;
 	private boolean readOnly = false;
+	private boolean memoryMapped = false;
+	private final Map<String, MappedFile> mappedFiles = new HashMap<String, MappedFile>();
 	
 	/**
 	 * Creates a new instance of the mirror file system
@@ -54,37 +74,257 @@ public class MirrorFs extends FileSystem {
 		this.readOnly = readOnly;
 	}
 	
+	/**
+	 * Creates a new instance of the mirror file system
+	 * @param baseRoot the mirrored root directory
+	 * @param readOnly whether the mirrored file system should be read only
+	 * @param memoryMapped whether reads should be served from memory mapped files. This requires a read only file system,
+	 * whose files are not changed while they are open.
+	 */
+	public MirrorFs(File baseRoot, boolean readOnly, boolean memoryMapped)
+	{
+		this(baseRoot, readOnly);
+		if (memoryMapped && !readOnly)
+			throw new IllegalArgumentException("Memory mapped reads require a read only file system");
+		this.memoryMapped = memoryMapped;
+	}
+	
 	private File getFile(String path)
 	{
 		return new File(baseRoot, path.replace('\\', '/'));
 	}
 	
+	/**
+	 * The attributes of a path, read with a single (l)stat
+	 */
+	private static class Attributes {
+		boolean directory;
+		boolean regularFile;
+		boolean symbolicLink;
+		long size;
+		long lastAccessTime;
+		long lastModificationTime;
+		long changeTime;
+		long inode;
+		int mode = -1;
+		int uid;
+		int gid;
+	}
+
+	/**
+	 * An entry, which keeps the attributes read along with it, e.g. its inode number and permissions
+	 */
+	private interface MirrorEntry {
+		Attributes getAttributes();
+	}
+
+	private static class MirrorFileInfo extends FileInfo implements MirrorEntry {
+		private final Attributes attributes;
+
+		MirrorFileInfo(String fullPath, Attributes attributes) {
+			super(fullPath, attributes.size);
+			this.attributes = attributes;
+		}
+
+		@Override
+		public Attributes getAttributes() {
+			return attributes;
+		}
+	}
+
+	private static class MirrorDirectoryInfo extends DirectoryInfo implements MirrorEntry {
+		private final Attributes attributes;
+
+		MirrorDirectoryInfo(String fullPath, Attributes attributes) {
+			super(fullPath);
+			this.attributes = attributes;
+		}
+
+		@Override
+		public Attributes getAttributes() {
+			return attributes;
+		}
+	}
+
+	private static class MirrorSymbolicLinkInfo extends SymbolicLinkInfo implements MirrorEntry {
+		private final Attributes attributes;
+
+		MirrorSymbolicLinkInfo(String source, String destination, Attributes attributes) {
+			super(source, destination);
+			this.attributes = attributes;
+		}
+
+		@Override
+		public Attributes getAttributes() {
+			return attributes;
+		}
+	}
+
+	private static final String UNIXATTRIBUTES = "unix:isDirectory,isRegularFile,isSymbolicLink,size,lastAccessTime,lastModifiedTime,ctime,ino,mode,uid,gid";
+	private static volatile boolean unixView = true;
+
+	/**
+	 * Reads the attributes of the path without following symbolic links.<br>
+	 * On unix, the change time, inode number and permissions are read in the same call.
+	 * PosixFileAttributes are not used, because owner() looks up the user name.
+	 * @param path the path
+	 * @return the attributes
+	 * @throws IOException the attributes could not be read
+	 */
+	private static Attributes readAttributes(Path path) throws IOException {
+		Attributes attributes = new Attributes();
+		if (unixView)
+		{
+			try {
+				Map<String, Object> unix = Files.readAttributes(path, UNIXATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+				attributes.directory = (Boolean) unix.get("isDirectory");
+				attributes.regularFile = (Boolean) unix.get("isRegularFile");
+				attributes.symbolicLink = (Boolean) unix.get("isSymbolicLink");
+				attributes.size = (Long) unix.get("size");
+				attributes.lastAccessTime = ((FileTime) unix.get("lastAccessTime")).to(TimeUnit.SECONDS);
+				attributes.lastModificationTime = ((FileTime) unix.get("lastModifiedTime")).to(TimeUnit.SECONDS);
+				attributes.changeTime = ((FileTime) unix.get("ctime")).to(TimeUnit.SECONDS);
+				attributes.inode = (Long) unix.get("ino");
+				attributes.mode = (Integer) unix.get("mode");
+				attributes.uid = (Integer) unix.get("uid");
+				attributes.gid = (Integer) unix.get("gid");
+				return attributes;
+			} catch (UnsupportedOperationException e) {
+				// not a unix file system
+				unixView = false;
+			} catch (IllegalArgumentException e) {
+				unixView = false;
+			}
+		}
+		BasicFileAttributes basic = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		attributes.directory = basic.isDirectory();
+		attributes.regularFile = basic.isRegularFile();
+		attributes.symbolicLink = basic.isSymbolicLink();
+		attributes.size = basic.size();
+		attributes.lastAccessTime = basic.lastAccessTime().to(TimeUnit.SECONDS);
+		attributes.lastModificationTime = basic.lastModifiedTime().to(TimeUnit.SECONDS);
+		attributes.changeTime = basic.creationTime().to(TimeUnit.SECONDS);
+		return attributes;
+	}
+
+	/**
+	 * Creates the entity info from the attributes
+	 * @return the entity info or null, if it is neither a file, a directory nor a symbolic link
+	 */
+	private static EntityInfo toEntityInfo(Path file, String path, Attributes attributes) {
+		EntityInfo info;
+		if (attributes.directory)
+			info = new MirrorDirectoryInfo(path, attributes);
+		else if (attributes.regularFile)
+			info = new MirrorFileInfo(path, attributes);
+		else if (attributes.symbolicLink)
+		{
+			String destination = "";
+			try {
+				destination = Files.readSymbolicLink(file).toString();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			info = new MirrorSymbolicLinkInfo(path, destination, attributes);
+		}
+		else
+			return null;
+		info.setLastAccessTime(attributes.lastAccessTime);
+		info.setLastModificationTime(attributes.lastModificationTime);
+		info.setCreationTime(attributes.changeTime);
+		return info;
+	}
+
+	private static UnixPermissions toUnixPermissions(File file, Attributes attributes) {
+		if (attributes.mode < 0)
+			return getUnixPermissions(file);
+		return new UnixPermissions(attributes.mode & 07777, attributes.uid, attributes.gid);
+	}
+
+	/**
+	 * Opens the directory for streaming its entries
+	 */
+	private DirectoryStream<Path> openDirectory(String path) throws NotADirectoryException, PathNotFoundException {
+		Path dir = getFile(path).toPath();
+		try {
+			return Files.newDirectoryStream(dir);
+		} catch (NoSuchFileException e) {
+			throw new PathNotFoundException(path);
+		} catch (NotDirectoryException e) {
+			throw new NotADirectoryException();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 	@Override
 	public Iterable<EntityInfo> listDirectory(String path)
 			throws NotADirectoryException, PathNotFoundException {
-		File dir = getFile(path);
-		if (!dir.exists())
-			throw new PathNotFoundException(path);
-		if (!dir.isDirectory())
-			throw new NotADirectoryException();
-		
-		File[] files = dir.listFiles();
-		List<EntityInfo> infos;
-		if (files == null)
-		{
-			return new ArrayList<EntityInfo>();
+		List<EntityInfo> infos = new ArrayList<EntityInfo>();
+		for (DirectoryEntry entry : listDirectoryWithAttributes(path, false, false))
+			infos.add(entry.getInfo());
+		return infos;
+	}
+
+	@Override
+	public Iterable<DirectoryEntry> listDirectoryWithAttributes(String path, boolean unixPermissions, boolean windowsAttributes)
+			throws NotADirectoryException, PathNotFoundException {
+		// one directory read and one attribute read per entry
+		List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+		DirectoryStream<Path> stream = openDirectory(path);
+		if (stream == null)
+			return entries;
+		WindowsAttributes windows = null;
+		if (windowsAttributes)
+			windows = isReadOnly() ? WindowsAttributes.ReadOnlyWindowsAttributes : WindowsAttributes.DefaultWindowsAttributes;
+		String prefix = path.endsWith("/") ? path : path + "/";
+		try {
+			for (Path child : stream)
+			{
+				Attributes attributes;
+				try {
+					attributes = readAttributes(child);
+				} catch (IOException e) {
+					// deleted in the meantime
+					continue;
+				}
+				EntityInfo info = toEntityInfo(child, prefix + child.getFileName(), attributes);
+				if (info == null)
+					continue;
+
+				UnixPermissions perms = null;
+				if (unixPermissions)
+					perms = toUnixPermissions(child.toFile(), attributes);
+				entries.add(new DirectoryEntry(info, perms, windows));
+			}
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
 		}
+		return entries;
+	}
+
+	/**
+	 * Returns an approximation, which is derived from the size of the underlying directory rather than from its entries.<br>
+	 * The driver multiplies the number by the maximum path length, so it reports about the size of the underlying directory.
+	 */
+	@Override
+	public int getNumberOfFilesInDirectory(DirectoryInfo info) {
+		long size;
+		if (MirrorDirectoryInfo.class.isInstance(info))
+			size = ((MirrorDirectoryInfo) info).getAttributes().size;
 		else
-			infos = new ArrayList<EntityInfo>(files.length);
-		for (File file : files)
 		{
-			if (file.isDirectory())
-				infos.add(new DirectoryInfo(translateFilePath(file)));
-
-			if (file.isFile())
-				infos.add(new FileInfo(translateFilePath(file), file.length()));
+			try {
+				size = readAttributes(getFile(info.getFullPath()).toPath()).size;
+			} catch (IOException e) {
+				return 0;
+			}
 		}
-		return infos;
+		int maxPathLength = getMaxPathLength();
+		return (int) Math.min(Integer.MAX_VALUE, (size + maxPathLength - 1) / maxPathLength);
 	}
 
 	private String translateFilePath(File file) {
@@ -98,21 +338,28 @@ public class MirrorFs extends FileSystem {
 	@Override
 	public EntityInfo getFileMetaData(String path) throws PathNotFoundException {
 		File file = getFile(path);
-		if (!file.exists())
+		Attributes attributes;
+		try {
+			attributes = readAttributes(file.toPath());
+		} catch (IOException e) {
 			throw new PathNotFoundException(path);
-		
-		EntityInfo info = null;
-		if (file.isDirectory())
-			info = new DirectoryInfo(translateFilePath(file));
+		}
+		return toEntityInfo(file.toPath(), translateFilePath(file), attributes);
+	}
 
-		if (file.isFile())
-			info = new FileInfo(translateFilePath(file), file.length());
-		
-		if (info != null)
-		{
-			info.setLastModificationTime(file.lastModified());
+	@Override
+	public void createSymbolicLink(String source, String destination) throws PathNotFoundException, SourceAlreadyExistsException, AccessDeniedException {
+		if (readOnly)
+			throw new AccessDeniedException();
+		try {
+			Files.createSymbolicLink(getFile(source).toPath(), Paths.get(destination));
+		} catch (FileAlreadyExistsException e) {
+			throw new SourceAlreadyExistsException();
+		} catch (NoSuchFileException e) {
+			throw new PathNotFoundException(source);
+		} catch (IOException e) {
+			throw new AccessDeniedException();
 		}
-		return info;
 	}
 
 	@Override
@@ -141,37 +388,59 @@ public class MirrorFs extends FileSystem {
 			throw new AccessDeniedException();
 		
 		FileHandle handle = new FileHandle(path);
-		String mode = "r";
-		/*if (read)
-			mode = "r";*/
-		if (write)
-			mode += "w";
 		try {
-			handle.setObjHandle(new RandomAccessFile(open, mode));
-		} catch (FileNotFoundException e) {
+			if (memoryMapped)
+				handle.setObjHandle(openMapped(open));
+			else if (write)
+				handle.setObjHandle(FileChannel.open(open.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+			else
+				handle.setObjHandle(FileChannel.open(open.toPath(), StandardOpenOption.READ));
+		} catch (java.nio.file.AccessDeniedException e) {
+			throw new AccessDeniedException();
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return handle;
 	}
 
+	private MappedFile openMapped(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		synchronized (mappedFiles)
+		{
+			MappedFile mapped = mappedFiles.get(key);
+			if (mapped != null && mapped.lastModified == file.lastModified() && mapped.size == file.length() && mapped.retain())
+				return mapped;
+			mapped = new MappedFile(key, FileChannel.open(file.toPath(), StandardOpenOption.READ), file.lastModified());
+			mappedFiles.put(key, mapped);
+			return mapped;
+		}
+	}
+
+	private static FileChannel getChannel(FileHandle fh) {
+		Object handle = fh.getObjHandle();
+		if (handle instanceof MappedFile)
+			return ((MappedFile) handle).getChannel();
+		return (FileChannel) handle;
+	}
+
 	@Override
 	public int read(FileHandle fh, ByteBuffer buffer, long offset) {
-		RandomAccessFile stream = (RandomAccessFile) fh.getObjHandle();
+		Object handle = fh.getObjHandle();
+		if (handle instanceof MappedFile)
+			return ((MappedFile) handle).read(buffer, offset);
+		FileChannel channel = (FileChannel) handle;
+		//positional reads do not use the file pointer, so concurrent reads on one handle are safe
+		int start = buffer.position();
 		try {
-			stream.seek(offset);
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer, offset + buffer.position() - start) < 0)
+					break;
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
-			return 0;
-		}
-		try {
-			byte[] r = new byte[buffer.limit()];
-			int read = stream.read(r);
-			buffer.put(r, 0, read);
-			return read;
-		} catch (IOException e) {
-			e.printStackTrace();
-			return 0;
 		}
+		return buffer.position() - start;
 	}
 
 	@Override
@@ -179,27 +448,42 @@ public class MirrorFs extends FileSystem {
 	}
 
 	@Override
-	public void close(FileHandle fh) {
-		RandomAccessFile stream = (RandomAccessFile) fh.getObjHandle();
+	public void fsync(FileHandle fh, boolean dataOnly) {
+		FileChannel channel = getChannel(fh);
 		try {
-			stream.close();
+			channel.force(!dataOnly);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
 	@Override
-	public void write(FileHandle fh, ByteBuffer buffer, long offset) {
-		RandomAccessFile stream = (RandomAccessFile) fh.getObjHandle();
+	public void close(FileHandle fh) {
+		Object handle = fh.getObjHandle();
 		try {
-			stream.seek(offset);
+			if (handle instanceof MappedFile)
+			{
+				MappedFile mapped = (MappedFile) handle;
+				synchronized (mappedFiles)
+				{
+					if (mapped.release() && mappedFiles.get(mapped.key) == mapped)
+						mappedFiles.remove(mapped.key);
+				}
+			}
+			else
+				((FileChannel) handle).close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+	}
+
+	@Override
+	public void write(FileHandle fh, ByteBuffer buffer, long offset) {
+		FileChannel channel = getChannel(fh);
+		int start = buffer.position();
 		try {
-			byte[] b = new byte[buffer.limit()];
-			buffer.get(b);
-			stream.write(b);
+			while (buffer.hasRemaining())
+				channel.write(buffer, offset + buffer.position() - start);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -224,14 +508,19 @@ public class MirrorFs extends FileSystem {
 	@Override
 	public void deleteFile(String file) throws PathNotFoundException, AccessDeniedException {
 		File del = new File(baseRoot, file);
-		if (!del.exists())
+		// a symbolic link is deleted itself, even if its destination does not exist
+		if (!Files.exists(del.toPath(), LinkOption.NOFOLLOW_LINKS))
 			throw new PathNotFoundException(file);
+		if (Files.isDirectory(del.toPath(), LinkOption.NOFOLLOW_LINKS))
+			throw new AccessDeniedException();
 		del.delete();
 	}
 
 	@Override
-	public void deleteDirectoryRecursively(String directory) {
+	public void deleteDirectoryRecursively(String directory) throws AccessDeniedException {
 		File del = new File(baseRoot, directory);
+		if (del.exists() && !Files.isDirectory(del.toPath(), LinkOption.NOFOLLOW_LINKS))
+			throw new AccessDeniedException();
 		try {
 			delete(del);
 		} catch (IOException e) {
@@ -240,7 +529,8 @@ public class MirrorFs extends FileSystem {
 	}
 	
 	void delete(File f) throws IOException {
-		if (f.isDirectory()) {
+		// the destination of a symbolic link is left alone
+		if (Files.isDirectory(f.toPath(), LinkOption.NOFOLLOW_LINKS)) {
 			for (File c : f.listFiles())
 				delete(c);
 		}
@@ -260,9 +550,12 @@ public class MirrorFs extends FileSystem {
 
 	@Override
 	public void setLength(FileHandle fh, long length) {
-		RandomAccessFile stream = (RandomAccessFile) fh.getObjHandle();
+		FileChannel channel = getChannel(fh);
 		try {
-			stream.setLength(length);
+			if (length < channel.size())
+				channel.truncate(length);
+			else if (length > channel.size())
+				channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -320,9 +613,42 @@ public class MirrorFs extends FileSystem {
 		return getFreeBlockAvailableCount();
 	}
 
+	@Override
+	public long getInodeNumber(EntityInfo info) {
+		if (MirrorEntry.class.isInstance(info))
+			return ((MirrorEntry) info).getAttributes().inode;
+		try {
+			Object inode = Files.getAttribute(getFile(info.getFullPath()).toPath(), "unix:ino", LinkOption.NOFOLLOW_LINKS);
+			return ((Number) inode).longValue();
+		} catch (UnsupportedOperationException e) {
+			// not a unix file system
+			return 0;
+		} catch (IllegalArgumentException e) {
+			return 0;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
 	@Override
 	public UnixPermissions getUnixPermissions(String path) throws PathNotFoundException {
-		File f = getFile(path);
+		File file = getFile(path);
+		try {
+			return toUnixPermissions(file, readAttributes(file.toPath()));
+		} catch (IOException e) {
+			throw new PathNotFoundException(path);
+		}
+	}
+
+	@Override
+	public UnixPermissions getUnixPermissions(EntityInfo info) throws PathNotFoundException {
+		// the permissions have been read along with the entry
+		if (MirrorEntry.class.isInstance(info))
+			return toUnixPermissions(getFile(info.getFullPath()), ((MirrorEntry) info).getAttributes());
+		return getUnixPermissions(info.getFullPath());
+	}
+
+	private static UnixPermissions getUnixPermissions(File f) {
 		return new UnixPermissions(f.canRead(), f.canWrite(), f.canExecute(), f.canRead(), f.canWrite(), f.canExecute(), f.canRead(), f.canWrite(), f.canExecute(), false, false, false, Environment.getUserId(), Environment.getGroupId());
 	}
 }
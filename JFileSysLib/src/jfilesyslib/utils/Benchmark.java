@@ -4,6 +4,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import jfilesyslib.FileSystem;
+import jfilesyslib.data.FileHandle;
 
 /**
  * Performs some simple benchmarks
@@ -36,11 +43,17 @@ public class Benchmark {
 		 */
 		public int blockSize;
 		
+		/**
+		 * The heap bytes allocated per read operation by the reading thread.<br>
+		 * It is -1 if the JVM does not support measuring allocations.
+		 */
+		public long allocatedBytesPerRead = -1;
+		
 		private static final String NEWLINE = "\n";
 
 		@Override
 		public String toString() {
-			return "Block size: " + blockSize + NEWLINE + "Write (ms): " + writeMs + NEWLINE + "Read (ms): " + readMs + NEWLINE + "KiB: " + kib;
+			return "Block size: " + blockSize + NEWLINE + "Write (ms): " + writeMs + NEWLINE + "Read (ms): " + readMs + NEWLINE + "KiB: " + kib + NEWLINE + "Allocated bytes per read: " + allocatedBytesPerRead;
 		}
 	}
 	
@@ -113,4 +126,155 @@ public class Benchmark {
 		return res;
 	}
 	
+	/**
+	 * Performs a random read benchmark directly on a (not mounted) file system.<br>
+	 * The file is filled with random data first; afterwards <i>count</i> blocks are read from random offsets
+	 * into a single direct buffer, as FUSE does.<br>
+	 * The result contains the heap bytes allocated per read, if the JVM is able to measure it.<br>
+	 * <b>Warning:</b> the file will be <b>overwritten</b>!
+	 * @param fileSystem the file system
+	 * @param path the path of the file
+	 * @param fileSize the size of the file in bytes
+	 * @param blocksize the number of bytes per read
+	 * @param count the number of reads
+	 * @return the benchmark result
+	 * @throws Exception the file could not be created or written
+	 */
+	public static BenchmarkResult runRandomReadBenchmark(FileSystem fileSystem, String path, int fileSize, int blocksize, int count) throws Exception
+	{
+		BenchmarkResult res = new BenchmarkResult();
+		res.blockSize = blocksize;
+		res.kib = (int)(((long)blocksize * count) / 1024);
+		if (!fileSystem.pathExists(path))
+			fileSystem.createFile(path);
+		FileHandle handle = fileSystem.openFile(path, true, true);
+		try {
+			byte[] content = new byte[fileSize];
+			new Random(42).nextBytes(content);
+			long startWrite = System.currentTimeMillis();
+			fileSystem.setLength(handle, 0);
+			fileSystem.write(handle, ByteBuffer.wrap(content), 0);
+			res.writeMs = (int)(System.currentTimeMillis() - startWrite);
+			
+			ByteBuffer buffer = ByteBuffer.allocateDirect(blocksize);
+			long[] offsets = new long[count];
+			Random rand = new Random(55);
+			for (int i = 0; i < count; i++)
+				offsets[i] = rand.nextInt(Math.max(1, fileSize - blocksize));
+			
+			//warm up
+			for (int i = 0; i < count; i++)
+			{
+				buffer.clear();
+				fileSystem.read(handle, buffer, offsets[i]);
+			}
+			
+			long allocatedBefore = getAllocatedBytes();
+			long startRead = System.currentTimeMillis();
+			for (int i = 0; i < count; i++)
+			{
+				buffer.clear();
+				fileSystem.read(handle, buffer, offsets[i]);
+			}
+			res.readMs = (int)(System.currentTimeMillis() - startRead);
+			long allocatedAfter = getAllocatedBytes();
+			if (allocatedBefore >= 0 && allocatedAfter >= 0)
+				res.allocatedBytesPerRead = (allocatedAfter - allocatedBefore) / count;
+		} finally {
+			fileSystem.close(handle);
+		}
+		return res;
+	}
+	
+	/**
+	 * Performs a sequential read benchmark directly on a (not mounted) file system.<br>
+	 * The file is filled with random data first; afterwards it is read from the start to the end
+	 * into a single direct buffer, as FUSE does, until read returns 0.<br>
+	 * Every read is checked against the read contract: the returned count has to match the bytes put into the buffer
+	 * and only the last read may be short.<br>
+	 * <b>Warning:</b> the file will be <b>overwritten</b>!
+	 * @param fileSystem the file system
+	 * @param path the path of the file
+	 * @param fileSize the size of the file in bytes
+	 * @param blocksize the number of bytes per read
+	 * @return the benchmark result
+	 * @throws Exception the file could not be created or written
+	 * @throws IllegalStateException the file system does not report exact byte counts
+	 */
+	public static BenchmarkResult runSequentialReadBenchmark(FileSystem fileSystem, String path, int fileSize, int blocksize) throws Exception
+	{
+		BenchmarkResult res = new BenchmarkResult();
+		res.blockSize = blocksize;
+		res.kib = fileSize / 1024;
+		if (!fileSystem.pathExists(path))
+			fileSystem.createFile(path);
+		FileHandle handle = fileSystem.openFile(path, true, true);
+		try {
+			byte[] content = new byte[fileSize];
+			new Random(42).nextBytes(content);
+			long startWrite = System.currentTimeMillis();
+			fileSystem.setLength(handle, 0);
+			fileSystem.write(handle, ByteBuffer.wrap(content), 0);
+			fileSystem.flush(handle);
+			res.writeMs = (int)(System.currentTimeMillis() - startWrite);
+			
+			ByteBuffer buffer = ByteBuffer.allocateDirect(blocksize);
+			
+			//warm up
+			readSequentially(fileSystem, handle, buffer, fileSize);
+			
+			long allocatedBefore = getAllocatedBytes();
+			long startRead = System.currentTimeMillis();
+			int reads = readSequentially(fileSystem, handle, buffer, fileSize);
+			res.readMs = (int)(System.currentTimeMillis() - startRead);
+			long allocatedAfter = getAllocatedBytes();
+			if (allocatedBefore >= 0 && allocatedAfter >= 0)
+				res.allocatedBytesPerRead = (allocatedAfter - allocatedBefore) / reads;
+		} finally {
+			fileSystem.close(handle);
+		}
+		return res;
+	}
+	
+	/**
+	 * Reads the whole file and checks the returned byte counts
+	 * @return the number of reads
+	 */
+	private static int readSequentially(FileSystem fileSystem, FileHandle handle, ByteBuffer buffer, long fileSize)
+	{
+		long offset = 0;
+		int reads = 0;
+		while (true)
+		{
+			buffer.clear();
+			int read = fileSystem.read(handle, buffer, offset);
+			reads++;
+			if (read != buffer.position())
+				throw new IllegalStateException("read returned " + read + ", but put " + buffer.position() + " bytes at offset " + offset);
+			if (read == 0)
+				break;
+			if (read < buffer.capacity() && offset + read != fileSize)
+				throw new IllegalStateException("short read of " + read + " bytes at offset " + offset + " before the end of the file");
+			offset += read;
+		}
+		if (offset != fileSize)
+			throw new IllegalStateException("read " + offset + " bytes of " + fileSize);
+		return reads;
+	}
+	
+	/**
+	 * Returns the number of heap bytes allocated by the current thread or -1 if it cannot be measured
+	 */
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
 }
@@ -0,0 +1,283 @@
+package jfilesyslib.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import jfilesyslib.utils.MemoryStream.Chunk;
+
+
+/**
+ * Compresses the cold chunks of memory streams in the background.<br>
+ * Each pass advances a clock; every access stamps the chunk with the current clock.
+ * If the uncompressed chunks occupy more than the budget, the least recently used ones are compressed
+ * until the budget is met again. Chunks which have been accessed recently are never compressed.<br>
+ * Chunks shared by several streams are neither compressed nor counted against the budget.<br>
+ * It is <i>thread safe</i>.
+ * @author Marc Miltenberger
+ */
+public class ChunkCompressor implements Runnable {
+	/**
+	 * The default time between two passes in milliseconds
+	 */
+	public static final long DEFAULTPERIOD = 1000;
+	/**
+	 * The default number of passes a chunk has to be idle before it may be compressed
+	 */
+	public static final int DEFAULTMINIMUMIDLEPASSES = 2;
+	private static final int MAXIMUMAGE = 64;
+
+	private final long budget;
+	private final long period;
+	private final int minimumIdlePasses;
+	private final Set<MemoryStream> streams = Collections.newSetFromMap(new WeakHashMap<MemoryStream, Boolean>());
+	private volatile int clock = 0;
+	private Thread thread;
+
+	// used by the passes only, which are serialized
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] deflateBuffer = new byte[0];
+	private byte[] contentBuffer = new byte[0];
+	private final long[] residentBytesByAge = new long[MAXIMUMAGE];
+	private long residentBytes;
+	private long compressedBytes;
+	private long compressedContentBytes;
+
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	private final ThreadLocal<byte[]> inflateBuffers = new ThreadLocal<byte[]>();
+
+	/**
+	 * Creates a new compressor with the default period.
+	 * @param budget the number of bytes the uncompressed chunks may occupy
+	 */
+	public ChunkCompressor(long budget) {
+		this(budget, DEFAULTPERIOD, DEFAULTMINIMUMIDLEPASSES);
+	}
+
+	/**
+	 * Creates a new compressor.
+	 * @param budget the number of bytes the uncompressed chunks may occupy
+	 * @param period the time between two passes in milliseconds
+	 * @param minimumIdlePasses the number of passes a chunk has to be idle before it may be compressed
+	 */
+	public ChunkCompressor(long budget, long period, int minimumIdlePasses) {
+		if (budget < 0)
+			throw new IllegalArgumentException("budget should not be negative; was: " + budget);
+		if (period <= 0)
+			throw new IllegalArgumentException("period should be positive; was: " + period);
+		if (minimumIdlePasses < 1 || minimumIdlePasses >= MAXIMUMAGE)
+			throw new IllegalArgumentException("minimumIdlePasses should be between 1 and " + (MAXIMUMAGE - 1) + "; was: " + minimumIdlePasses);
+		this.budget = budget;
+		this.period = period;
+		this.minimumIdlePasses = minimumIdlePasses;
+	}
+
+	/**
+	 * Starts the background thread
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "ChunkCompressor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the background thread.<br>
+	 * Compressed chunks stay compressed until they are accessed.
+	 */
+	public void stop() {
+		Thread stopped;
+		synchronized (this)
+		{
+			stopped = thread;
+			thread = null;
+		}
+		if (stopped == null)
+			return;
+		stopped.interrupt();
+		try {
+			stopped.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true)
+		{
+			try {
+				Thread.sleep(period);
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this)
+			{
+				if (thread != Thread.currentThread())
+					return;
+			}
+			compressNow();
+		}
+	}
+
+	/**
+	 * Runs a single pass in the calling thread.
+	 */
+	public synchronized void compressNow() {
+		List<MemoryStream> current;
+		synchronized (streams)
+		{
+			current = new ArrayList<MemoryStream>(streams);
+		}
+		clock++;
+		for (int age = 0; age < MAXIMUMAGE; age++)
+			residentBytesByAge[age] = 0;
+		residentBytes = 0;
+		compressedBytes = 0;
+		compressedContentBytes = 0;
+		for (MemoryStream stream : current)
+			stream.inspectChunks(this);
+
+		long excess = residentBytes - budget;
+		if (excess <= 0)
+			return;
+		// compress the oldest chunks which make up the excess
+		int oldestAge = MAXIMUMAGE - 1;
+		long selected = 0;
+		for (int age = MAXIMUMAGE - 1; age >= minimumIdlePasses; age--)
+		{
+			oldestAge = age;
+			selected += residentBytesByAge[age];
+			if (selected >= excess)
+				break;
+		}
+		for (MemoryStream stream : current)
+		{
+			long compressed = stream.compressChunks(clock - oldestAge);
+			residentBytes -= compressed;
+			if (residentBytes <= budget)
+				break;
+		}
+	}
+
+	/**
+	 * Records the chunk in the statistics of the current pass
+	 * @param chunk the chunk
+	 */
+	void inspect(Chunk chunk) {
+		byte[] compressed = chunk.compressed;
+		if (compressed != null)
+		{
+			compressedBytes += compressed.length;
+			compressedContentBytes += chunk.getSize();
+		}
+		else if (!chunk.isShared())
+		{
+			int age = Math.min(MAXIMUMAGE - 1, Math.max(0, clock - chunk.lastAccess));
+			residentBytesByAge[age] += chunk.getSize();
+			residentBytes += chunk.getSize();
+		}
+	}
+
+	void register(MemoryStream stream) {
+		synchronized (streams)
+		{
+			streams.add(stream);
+		}
+	}
+
+	int getClock() {
+		return clock;
+	}
+
+	/**
+	 * Returns a buffer of at least the given length, which is only used by the passes
+	 */
+	byte[] getBuffer(int length) {
+		if (contentBuffer.length < length)
+			contentBuffer = new byte[length];
+		return contentBuffer;
+	}
+
+	/**
+	 * Compresses the content
+	 * @param content the content
+	 * @param length the length of the content
+	 * @return the compressed content or null if compressing does not save at least an eighth
+	 */
+	byte[] deflate(byte[] content, int length) {
+		int limit = length - length / 8;
+		if (deflateBuffer.length < limit)
+			deflateBuffer = new byte[limit];
+		deflater.reset();
+		deflater.setInput(content, 0, length);
+		deflater.finish();
+		int compressedLength = deflater.deflate(deflateBuffer, 0, limit);
+		if (!deflater.finished())
+			return null;
+		byte[] result = new byte[compressedLength];
+		System.arraycopy(deflateBuffer, 0, result, 0, compressedLength);
+		return result;
+	}
+
+	/**
+	 * Decompresses the content into a buffer of the calling thread
+	 * @param compressed the compressed content
+	 * @param length the length of the content
+	 * @return the buffer, which holds the content at its start
+	 */
+	byte[] inflate(byte[] compressed, int length) {
+		byte[] buffer = inflateBuffers.get();
+		if (buffer == null || buffer.length < length)
+		{
+			buffer = new byte[length];
+			inflateBuffers.set(buffer);
+		}
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			if (inflater.inflate(buffer, 0, length) != length)
+				throw new IllegalStateException("Compressed chunk is truncated");
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Compressed chunk is corrupt", e);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of bytes occupied by uncompressed chunks after the last pass
+	 * @return the resident bytes
+	 */
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * Returns the number of bytes occupied by compressed chunks when the last pass started
+	 * @return the compressed bytes
+	 */
+	public synchronized long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	/**
+	 * Returns the uncompressed size of the compressed chunks when the last pass started
+	 * @return the uncompressed size in bytes
+	 */
+	public synchronized long getCompressedContentBytes() {
+		return compressedContentBytes;
+	}
+}
@@ -0,0 +1,93 @@
+package jfilesyslib.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jfilesyslib.utils.MemoryStream.Chunk;
+
+
+/**
+ * Stores chunks by their content, so memory streams can share chunks with equal content.<br>
+ * A chunk stays in the store as long as any stream refers to it and nobody writes to it.
+ * Writing to a chunk shared by several streams copies it first.<br>
+ * It is <i>thread safe</i>.
+ * @author Marc Miltenberger
+ */
+public class ChunkStore {
+	private final Map<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+	private long storedBytes = 0;
+	// guarded by this store, but updated by the chunks
+	long referencedBytes = 0;
+
+	/**
+	 * Returns the stored chunk with the same content as <i>chunk</i>.<br>
+	 * If there is none, <i>chunk</i> itself is stored. Otherwise, the reference to <i>chunk</i> is released.
+	 * @param chunk the chunk, whose hash has to be computed
+	 * @return the chunk to use instead
+	 */
+	synchronized Chunk share(Chunk chunk) {
+		Chunk stored = chunks.get(chunk.hash);
+		if (stored == chunk)
+			return chunk;
+		if (stored == null)
+		{
+			chunks.put(chunk.hash, chunk);
+			chunk.store = this;
+			storedBytes += chunk.getSize();
+			referencedBytes += (long) chunk.getSize() * chunk.references;
+			return chunk;
+		}
+		// a hash collision
+		if (!stored.contentEquals(chunk))
+			return chunk;
+		stored.retain();
+		chunk.release();
+		return stored;
+	}
+
+	/**
+	 * Removes the chunk from the store; the lock of the store has to be held.
+	 * @param chunk the chunk
+	 */
+	void remove(Chunk chunk) {
+		if (chunks.get(chunk.hash) == chunk)
+			chunks.remove(chunk.hash);
+		storedBytes -= chunk.getSize();
+		referencedBytes -= (long) chunk.getSize() * chunk.references;
+		chunk.store = null;
+	}
+
+	/**
+	 * Returns the number of bytes occupied by the chunks in the store
+	 * @return the stored bytes
+	 */
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes the streams refer to through the chunks in the store
+	 * @return the referenced bytes
+	 */
+	public synchronized long getReferencedBytes() {
+		return referencedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes saved by sharing chunks
+	 * @return the saved bytes
+	 */
+	public synchronized long getSavedBytes() {
+		return referencedBytes - storedBytes;
+	}
+
+	/**
+	 * Returns the ratio of referenced bytes to stored bytes
+	 * @return the deduplication ratio, which is 1 if nothing has been stored
+	 */
+	public synchronized double getDeduplicationRatio() {
+		if (storedBytes == 0)
+			return 1;
+		return (double) referencedBytes / storedBytes;
+	}
+}
@@ -0,0 +1,83 @@
+package jfilesyslib.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jfilesyslib.exceptions.DriveFullException;
+
+
+/**
+ * Accounts the memory held by the chunks of memory streams and enforces a capacity.<br>
+ * The counter is updated without locking, so it is cheap enough to be updated on every allocation.<br>
+ * It is <i>thread safe</i>.
+ * @author Marc Miltenberger
+ */
+public class MemoryQuota {
+	private final long capacity;
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	/**
+	 * Creates a new quota.
+	 * @param capacity the maximum number of bytes the chunks may occupy
+	 */
+	public MemoryQuota(long capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity should not be negative; was: " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserves memory
+	 * @param bytes the number of bytes
+	 * @throws DriveFullException the capacity would be exceeded
+	 */
+	public void reserve(long bytes) throws DriveFullException {
+		while (true)
+		{
+			long used = usedBytes.get();
+			if (used + bytes > capacity)
+				throw new DriveFullException();
+			if (usedBytes.compareAndSet(used, used + bytes))
+				return;
+		}
+	}
+
+	/**
+	 * Accounts memory which has to be taken regardless of the capacity, e.g. to decompress a chunk on a read
+	 * @param bytes the number of bytes
+	 */
+	public void add(long bytes) {
+		usedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Returns reserved memory
+	 * @param bytes the number of bytes
+	 */
+	public void release(long bytes) {
+		usedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Returns the maximum number of bytes the chunks may occupy
+	 * @return the capacity in bytes
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of bytes the chunks occupy
+	 * @return the used bytes
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes which may still be reserved
+	 * @return the free bytes
+	 */
+	public long getFreeBytes() {
+		return Math.max(0, capacity - usedBytes.get());
+	}
+}
@@ -1,41 +1,503 @@
 package jfilesyslib.utils;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jfilesyslib.exceptions.DriveFullException;
 
 
 /**
  * A file system which may be written to or read from at the same time.<br>
- * The memory consists of chunks.<br>
+ * The memory consists of chunks, which are either allocated on the java heap or taken from an {@link OffHeapArena}.<br>
+ * The content may be sparse: chunks are only allocated when they are written to, the holes in between read as zeros.<br>
+ * Chunks are reference counted, so a stream can be {@link #fork() forked} without copying its content;
+ * a shared chunk is copied as soon as one of the streams writes to it.<br>
+ * Streams which use a {@link ChunkStore} may {@link #deduplicate() share} chunks with equal content.<br>
+ * Streams which use a {@link ChunkCompressor} have their cold chunks compressed in the background;
+ * a compressed chunk is decompressed when it is accessed.<br>
+ * Chunks may also be {@link #mapChunk(long, ByteBuffer) mapped} from read-only buffers such as memory-mapped files;
+ * they are copied as soon as they are written to.<br>
+ * Streams which use a {@link MemoryQuota} account the memory of their chunks to it and fail to allocate chunks beyond its capacity.<br>
+ * Reads and writes at an explicit offset do not touch the stream position. They may run concurrently;
+ * only operations which change the length lock the stream exclusively.<br>
  * It is <i>thread safe</i>.
  * @author Marc Miltenberger
  */
 public class MemoryStream {
 	public static final int DEFAULTCHUNKSIZE = 4096 * 4;
 	private int CHUNKSIZE = DEFAULTCHUNKSIZE;
-	
+
 	/**
-	 * Represents a single chunk
+	 * Represents a single chunk.<br>
+	 * A chunk may be shared by several streams; it is released when the last of them releases it.
 	 * @author Marc Miltenberger
 	 */
 	public class Chunk
 	{
-		byte[] chunk = new byte[CHUNKSIZE];
-		int filled;
-		int index;
+		ByteBuffer data;
+		int offHeapChunk = -1;
+		// guards the reference count; all chunks of a chunk store share its lock
+		private final Object referenceLock = chunkStore != null ? chunkStore : this;
+		volatile int references = 1;
+		// the chunk store this chunk is registered in, guarded by the reference lock
+		volatile ChunkStore store;
+		long hash;
+		// whether the content has been hashed since it has been written to
+		boolean hashed;
+		// the compressed content if neither data nor offHeapChunk are set
+		volatile byte[] compressed;
+		// the compressor clock at the last access
+		int lastAccess;
+		// whether compressing the content did not pay off since it has been written to
+		boolean incompressible;
+		// whether data is a read-only buffer owned by somebody else
+		final boolean mapped;
+
+		Chunk() throws DriveFullException
+		{
+			if (quota != null)
+				quota.reserve(CHUNKSIZE);
+			if (arena == null)
+				data = ByteBuffer.allocate(CHUNKSIZE);
+			else {
+				try {
+					offHeapChunk = arena.allocate();
+				} catch (DriveFullException e) {
+					if (quota != null)
+						quota.release(CHUNKSIZE);
+					throw e;
+				}
+			}
+			mapped = false;
+			if (compressor != null)
+				lastAccess = compressor.getClock();
+		}
+
+		/**
+		 * Creates a read-only chunk backed by the content
+		 */
+		Chunk(ByteBuffer content)
+		{
+			data = content;
+			mapped = true;
+			if (compressor != null)
+				lastAccess = compressor.getClock();
+		}
+
+		/**
+		 * Decompresses the content if necessary and records the access
+		 */
+		private void touch()
+		{
+			if (compressor == null)
+				return;
+			if (compressed != null)
+				decompress();
+			lastAccess = compressor.getClock();
+		}
+
+		private synchronized void decompress()
+		{
+			if (compressed == null)
+				return;
+			byte[] content = compressor.inflate(compressed, CHUNKSIZE);
+			if (arena != null)
+			{
+				try {
+					offHeapChunk = arena.allocate();
+				} catch (DriveFullException e) {
+					// keep the chunk on the heap rather than failing the read
+				}
+			}
+			if (offHeapChunk >= 0)
+				view(0, CHUNKSIZE).put(content, 0, CHUNKSIZE);
+			else
+				data = ByteBuffer.wrap(Arrays.copyOf(content, CHUNKSIZE));
+			if (quota != null)
+				quota.add(CHUNKSIZE - compressed.length);
+			compressed = null;
+		}
+
+		/**
+		 * Compresses the content; the write lock of the stream has to be held and the chunk must not be shared.
+		 * @return the number of bytes saved
+		 */
+		int compress()
+		{
+			byte[] content;
+			if (data != null)
+				content = data.array();
+			else
+			{
+				content = compressor.getBuffer(CHUNKSIZE);
+				view(0, CHUNKSIZE).get(content, 0, CHUNKSIZE);
+			}
+			byte[] result = compressor.deflate(content, CHUNKSIZE);
+			if (result == null)
+			{
+				incompressible = true;
+				return 0;
+			}
+			compressed = result;
+			if (quota != null)
+				quota.release(CHUNKSIZE - result.length);
+			if (offHeapChunk >= 0)
+				arena.free(offHeapChunk);
+			offHeapChunk = -1;
+			data = null;
+			return CHUNKSIZE - result.length;
+		}
+
+		/**
+		 * Returns the calling thread's view of the off-heap chunk, limited to the given range
+		 */
+		private ByteBuffer view(int position, int length)
+		{
+			ByteBuffer view = arena.getView(offHeapChunk);
+			int offset = arena.getOffset(offHeapChunk) + position;
+			view.clear();
+			view.position(offset);
+			view.limit(offset + length);
+			return view;
+		}
+
+		void get(int position, ByteBuffer dst, int length)
+		{
+			touch();
+			if (data == null)
+				dst.put(view(position, length));
+			else if (!mapped)
+				dst.put(data.array(), data.arrayOffset() + position, length);
+			else {
+				ByteBuffer content = data.duplicate();
+				content.position(position);
+				content.limit(position + length);
+				dst.put(content);
+			}
+		}
+
+		void put(int position, ByteBuffer src, int length)
+		{
+			touch();
+			hashed = false;
+			incompressible = false;
+			if (data != null)
+				src.get(data.array(), data.arrayOffset() + position, length);
+			else {
+				int limit = src.limit();
+				src.limit(src.position() + length);
+				view(position, length).put(src);
+				src.limit(limit);
+			}
+		}
+
+		void zero(int from)
+		{
+			touch();
+			hashed = false;
+			incompressible = false;
+			if (data != null)
+				Arrays.fill(data.array(), data.arrayOffset() + from, data.arrayOffset() + CHUNKSIZE, (byte) 0);
+			else {
+				ByteBuffer view = view(from, CHUNKSIZE - from);
+				while (view.hasRemaining())
+					view.put((byte) 0);
+			}
+		}
+
+		/**
+		 * Copies the whole content of <i>source</i> into this chunk
+		 */
+		void copyFrom(Chunk source)
+		{
+			ByteBuffer target;
+			if (data != null)
+				target = ByteBuffer.wrap(data.array(), data.arrayOffset(), CHUNKSIZE);
+			else
+				target = view(0, CHUNKSIZE).duplicate(); // the source may use the same view
+			source.get(0, target, CHUNKSIZE);
+		}
+
+		int getSize()
+		{
+			return CHUNKSIZE;
+		}
+
+		/**
+		 * Computes the hash of the content
+		 * @return false if the chunk only contains zeros
+		 */
+		boolean computeHash()
+		{
+			touch();
+			ByteBuffer content = data != null ? data.duplicate() : view(0, CHUNKSIZE);
+			long h = CHUNKSIZE;
+			long bits = 0;
+			while (content.remaining() >= 8)
+			{
+				long value = content.getLong();
+				bits |= value;
+				h = (h ^ value) * 0x9E3779B97F4A7C15L;
+				h ^= h >>> 29;
+			}
+			while (content.hasRemaining())
+			{
+				byte value = content.get();
+				bits |= value;
+				h = (h ^ value) * 0x9E3779B97F4A7C15L;
+			}
+			hash = h;
+			hashed = true;
+			return bits != 0;
+		}
+
+		boolean contentEquals(Chunk other)
+		{
+			if (other.getSize() != CHUNKSIZE)
+				return false;
+			touch();
+			other.touch();
+			ByteBuffer content = data != null ? data.duplicate() : view(0, CHUNKSIZE).duplicate();
+			ByteBuffer otherContent = other.data != null ? other.data.duplicate() : other.view(0, CHUNKSIZE);
+			return content.equals(otherContent);
+		}
+
+		void retain()
+		{
+			synchronized (referenceLock)
+			{
+				references++;
+				if (store != null)
+					store.referencedBytes += CHUNKSIZE;
+			}
+		}
+
+		boolean isShared()
+		{
+			return references > 1 || store != null || mapped;
+		}
+
+		/**
+		 * Removes the chunk from its chunk store if no other stream refers to it
+		 * @return true if the chunk may be written to afterwards
+		 */
+		boolean unshare()
+		{
+			synchronized (referenceLock)
+			{
+				if (references > 1 || mapped)
+					return false;
+				if (store != null)
+					store.remove(this);
+				return true;
+			}
+		}
+
+		void release()
+		{
+			synchronized (referenceLock)
+			{
+				if (store != null)
+					store.referencedBytes -= CHUNKSIZE;
+				if (--references > 0)
+					return;
+				if (store != null)
+					store.remove(this);
+				free();
+			}
+		}
+
+		private synchronized void free()
+		{
+			if (quota != null && !mapped)
+				quota.release(compressed != null ? compressed.length : CHUNKSIZE);
+			if (offHeapChunk >= 0)
+				arena.free(offHeapChunk);
+			offHeapChunk = -1;
+			data = null;
+			compressed = null;
+		}
+	}
+	/**
+	 * Maps chunk indices to chunks with open addressing, so looking up a chunk does not box the index.<br>
+	 * Indices without a chunk are holes, which read as zeros.
+	 * @author Marc Miltenberger
+	 */
+	private static class ChunkTable
+	{
+		private long[] indices = new long[16];
+		private Chunk[] chunks = new Chunk[16];
+		private int size = 0;
+
+		private static int slot(long index, int mask)
+		{
+			long hash = index * 0x9E3779B97F4A7C15L;
+			return (int) (hash >>> 32) & mask;
+		}
+
+		Chunk get(long index)
+		{
+			int mask = chunks.length - 1;
+			int slot = slot(index, mask);
+			while (true)
+			{
+				Chunk chunk = chunks[slot];
+				if (chunk == null || indices[slot] == index)
+					return chunk;
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		void put(long index, Chunk chunk)
+		{
+			if ((size + 1) * 4 > chunks.length * 3)
+				rehash(chunks.length * 2);
+			insert(index, chunk);
+		}
+
+		/**
+		 * Removes the chunk at <i>index</i> without releasing it
+		 */
+		Chunk remove(long index)
+		{
+			int mask = chunks.length - 1;
+			int slot = slot(index, mask);
+			while (chunks[slot] != null && indices[slot] != index)
+				slot = (slot + 1) & mask;
+			Chunk removed = chunks[slot];
+			if (removed == null)
+				return null;
+			// shift back the following entries of the cluster, so no lookup stops early at the gap
+			int gap = slot;
+			int next = (gap + 1) & mask;
+			while (chunks[next] != null)
+			{
+				int home = slot(indices[next], mask);
+				if (((next - home) & mask) >= ((next - gap) & mask))
+				{
+					indices[gap] = indices[next];
+					chunks[gap] = chunks[next];
+					gap = next;
+				}
+				next = (next + 1) & mask;
+			}
+			chunks[gap] = null;
+			size--;
+			return removed;
+		}
+
+		private void insert(long index, Chunk chunk)
+		{
+			int mask = chunks.length - 1;
+			int slot = slot(index, mask);
+			while (chunks[slot] != null && indices[slot] != index)
+				slot = (slot + 1) & mask;
+			if (chunks[slot] == null)
+				size++;
+			indices[slot] = index;
+			chunks[slot] = chunk;
+		}
+
+		private void rehash(int capacity)
+		{
+			long[] oldIndices = indices;
+			Chunk[] oldChunks = chunks;
+			indices = new long[capacity];
+			chunks = new Chunk[capacity];
+			size = 0;
+			for (int i = 0; i < oldChunks.length; i++)
+			{
+				if (oldChunks[i] != null)
+					insert(oldIndices[i], oldChunks[i]);
+			}
+		}
+
+		/**
+		 * Releases and removes every chunk whose index is at least <i>firstIndex</i>
+		 */
+		void releaseFrom(long firstIndex)
+		{
+			int remaining = 0;
+			for (int i = 0; i < chunks.length; i++)
+			{
+				if (chunks[i] == null)
+					continue;
+				if (indices[i] >= firstIndex)
+				{
+					chunks[i].release();
+					chunks[i] = null;
+				}
+				else
+					remaining++;
+			}
+			int capacity = 16;
+			while (remaining * 4 > capacity * 3)
+				capacity *= 2;
+			rehash(capacity);
+		}
+
+		int capacity()
+		{
+			return chunks.length;
+		}
+
+		long indexAt(int slot)
+		{
+			return indices[slot];
+		}
+
+		Chunk chunkAt(int slot)
+		{
+			return chunks[slot];
+		}
+
+		void replaceAt(int slot, Chunk chunk)
+		{
+			chunks[slot] = chunk;
+		}
+
+		/**
+		 * Returns a copy of the table, which shares all chunks
+		 */
+		ChunkTable copy()
+		{
+			ChunkTable copy = new ChunkTable();
+			copy.indices = indices.clone();
+			copy.chunks = chunks.clone();
+			copy.size = size;
+			for (Chunk chunk : chunks)
+			{
+				if (chunk != null)
+					chunk.retain();
+			}
+			return copy;
+		}
+
+		/**
+		 * Releases all chunks
+		 */
+		void releaseAll()
+		{
+			releaseFrom(Long.MIN_VALUE);
+		}
 	}
-	private List<Chunk> chunks = new ArrayList<Chunk>();
-	private Chunk currentChunk;
-	private int positionWithinChunk = 0;
-	private Chunk lastChunk;
+	private ChunkTable chunks = new ChunkTable();
+	// chunk indices collected by the current operation; guarded by the write lock
+	private long[] collected = new long[4];
+	private static final byte[] ZEROS = new byte[4096];
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile long length = 0;
+	private long position = 0;
+	private OffHeapArena arena;
+	private ChunkStore chunkStore;
+	private ChunkCompressor compressor;
+	private MemoryQuota quota;
 
 	/**
 	 * Creates a new instance of MemoryStream.
 	 */
 	public MemoryStream()  {
-		currentChunk = new Chunk();
-		lastChunk = currentChunk;
-		chunks.add(currentChunk);
 	}
 
 
@@ -45,231 +507,480 @@ public class MemoryStream {
 	 */
 	public MemoryStream(int chunksize)  {
 		this.CHUNKSIZE = chunksize;
-		currentChunk = new Chunk();
-		lastChunk = currentChunk;
-		chunks.add(currentChunk);
 	}
 
 	/**
 	 * Creates a new instance of MemoryStream.
 	 * @param memory the initial content
-	 * @throws IOException 
+	 * @throws IOException
 	 */
 	public MemoryStream(byte[] memory) throws IOException  {
-		write(memory);
-		seek(0);
+		this(memory, DEFAULTCHUNKSIZE);
 	}
 
 	/**
 	 * Creates a new instance of MemoryStream.
 	 * @param memory the initial content
 	 * @param chunksize the size of each chunk
-	 * @throws IOException 
+	 * @throws IOException
 	 */
 	public MemoryStream(byte[] memory, int chunksize) throws IOException  {
 		this.CHUNKSIZE = chunksize;
-		currentChunk = new Chunk();
-		lastChunk = currentChunk;
-		chunks.add(currentChunk);
-		write(memory);
-		seek(0);
+		try {
+			write(0, ByteBuffer.wrap(memory));
+		} catch (DriveFullException e) {
+			throw new IOException(e);
+		}
 	}
 
 	/**
-	 * Creates a new instance of MemoryStream.
-	 * @param chunkList the chunk list
+	 * Creates a new instance of MemoryStream.<br>
+	 * No chunk is allocated until the first write.
+	 * @param arena the arena new chunks are taken from or null to allocate them on the java heap
 	 */
-	public MemoryStream(List<Chunk> chunkList) {
-		this.chunks = chunkList;
-		if (chunkList.size() == 0)
-		{
-			currentChunk = new Chunk();
-			lastChunk = currentChunk;
-			chunks.add(currentChunk);
+	public MemoryStream(OffHeapArena arena) {
+		this(arena, null);
+	}
+
+	/**
+	 * Creates a new instance of MemoryStream.<br>
+	 * No chunk is allocated until the first write.
+	 * @param arena the arena new chunks are taken from or null to allocate them on the java heap
+	 * @param chunkStore the store to share chunks with equal content with or null to disable deduplication
+	 */
+	public MemoryStream(OffHeapArena arena, ChunkStore chunkStore) {
+		this(arena, chunkStore, null);
+	}
+
+	/**
+	 * Creates a new instance of MemoryStream.<br>
+	 * No chunk is allocated until the first write.
+	 * @param arena the arena new chunks are taken from or null to allocate them on the java heap
+	 * @param chunkStore the store to share chunks with equal content with or null to disable deduplication
+	 * @param compressor the compressor for cold chunks or null to disable compression
+	 */
+	public MemoryStream(OffHeapArena arena, ChunkStore chunkStore, ChunkCompressor compressor) {
+		this(arena, chunkStore, compressor, null);
+	}
+
+	/**
+	 * Creates a new instance of MemoryStream.<br>
+	 * No chunk is allocated until the first write.
+	 * @param arena the arena new chunks are taken from or null to allocate them on the java heap
+	 * @param chunkStore the store to share chunks with equal content with or null to disable deduplication
+	 * @param compressor the compressor for cold chunks or null to disable compression
+	 * @param quota the quota the memory of the chunks is accounted to or null to allocate chunks without limit
+	 */
+	public MemoryStream(OffHeapArena arena, ChunkStore chunkStore, ChunkCompressor compressor, MemoryQuota quota) {
+		this.quota = quota;
+		this.arena = arena;
+		this.chunkStore = chunkStore;
+		this.compressor = compressor;
+		if (arena != null)
+			CHUNKSIZE = arena.getChunkSize();
+		if (compressor != null)
+			compressor.register(this);
+	}
+
+	/**
+	 * Returns a new stream with the same content.<br>
+	 * The content is not copied: both streams share their chunks until one of them writes to a chunk.
+	 * @return the new stream
+	 */
+	public MemoryStream fork() {
+		MemoryStream fork = new MemoryStream(CHUNKSIZE);
+		fork.arena = arena;
+		fork.chunkStore = chunkStore;
+		fork.compressor = compressor;
+		fork.quota = quota;
+		if (compressor != null)
+			compressor.register(fork);
+		lock.writeLock().lock();
+		try {
+			fork.chunks = chunks.copy();
+			fork.length = length;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return fork;
+	}
+
+	/**
+	 * Shares every full chunk with the chunks of equal content in the chunk store.<br>
+	 * Chunks which only contain zeros are released and turned into holes.
+	 * Chunks which have not been written to since the last call are skipped.
+	 * It has no effect if the stream does not use a chunk store.
+	 */
+	public void deduplicate() {
+		if (chunkStore == null)
+			return;
+		lock.writeLock().lock();
+		try {
+			long fullChunks = length / CHUNKSIZE;
+			int zeroChunks = 0;
+			for (int slot = 0; slot < chunks.capacity(); slot++)
+			{
+				Chunk chunk = chunks.chunkAt(slot);
+				if (chunk == null || chunk.hashed || chunks.indexAt(slot) >= fullChunks)
+					continue;
+				if (!chunk.computeHash())
+					zeroChunks = collect(zeroChunks, chunks.indexAt(slot));
+				else
+					chunks.replaceAt(slot, chunkStore.share(chunk));
+			}
+			for (int i = 0; i < zeroChunks; i++)
+				chunks.remove(collected[i]).release();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the chunk at the index by a read-only chunk which is backed by the content, e.g. a region of a memory-mapped file.<br>
+	 * The content is not copied until the chunk is written to; it must not change as long as the stream refers to it.
+	 * The length of the stream is not changed.
+	 * @param chunkIndex the index of the chunk
+	 * @param content the content of the chunk, which has to hold at least a whole chunk starting at its position
+	 */
+	public void mapChunk(long chunkIndex, ByteBuffer content) {
+		if (content.remaining() < CHUNKSIZE)
+			throw new IllegalArgumentException("content should hold a whole chunk; was: " + content.remaining());
+		ByteBuffer chunkContent = content.slice();
+		chunkContent.limit(CHUNKSIZE);
+		lock.writeLock().lock();
+		try {
+			Chunk old = chunks.remove(chunkIndex);
+			if (old != null)
+				old.release();
+			chunks.put(chunkIndex, new Chunk(chunkContent));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the size of each chunk
+	 * @return the chunk size in bytes
+	 */
+	public int getChunkSize() {
+		return CHUNKSIZE;
+	}
+
+	/**
+	 * Passes every chunk to the compressor to gather statistics
+	 * @param compressor the compressor
+	 */
+	void inspectChunks(ChunkCompressor compressor) {
+		lock.readLock().lock();
+		try {
+			for (int slot = 0; slot < chunks.capacity(); slot++)
+			{
+				Chunk chunk = chunks.chunkAt(slot);
+				if (chunk != null)
+					compressor.inspect(chunk);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compresses every chunk which has not been accessed since <i>lastAccess</i>, unless it is shared.<br>
+	 * Nothing is compressed if the stream is locked.
+	 * @param lastAccess the compressor clock
+	 * @return the number of bytes compressed
+	 */
+	long compressChunks(int lastAccess) {
+		if (!lock.writeLock().tryLock())
+			return 0;
+		try {
+			long compressedBytes = 0;
+			for (int slot = 0; slot < chunks.capacity(); slot++)
+			{
+				Chunk chunk = chunks.chunkAt(slot);
+				if (chunk == null || chunk.compressed != null || chunk.incompressible || chunk.isShared())
+					continue;
+				if (chunk.lastAccess - lastAccess <= 0 && chunk.compress() > 0)
+					compressedBytes += CHUNKSIZE;
+			}
+			return compressedBytes;
+		} finally {
+			lock.writeLock().unlock();
 		}
-		if (chunkList.size() > 0)
+	}
+
+	private int collect(int count, long index) {
+		if (count == collected.length)
 		{
-			this.lastChunk = chunkList.get(chunkList.size() - 1);
-			this.currentChunk = chunkList.get(0);
-			CHUNKSIZE = currentChunk.chunk.length;
+			long[] newCollected = new long[count * 2];
+			System.arraycopy(collected, 0, newCollected, 0, count);
+			collected = newCollected;
+		}
+		collected[count] = index;
+		return count + 1;
+	}
+
+	/**
+	 * Releases every chunk and truncates the stream to zero length.<br>
+	 * Chunks taken from an off-heap arena are returned to it.
+	 */
+	public void release() {
+		lock.writeLock().lock();
+		try {
+			chunks.releaseAll();
+			length = 0;
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
-	
+
 	/**
 	 * Flushes the stream (no effect)
 	 */
 	public void flush() {
-		
+
 	}
-	
+
 
 	/**
 	 * Returns the content's length
 	 * @return the content's length
 	 */
-	public int getLength() {
-		if (chunks.size() == 0)
-			return 0;
-		return CHUNKSIZE * (chunks.size() - 1) + lastChunk.filled;
+	public long getLength() {
+		return length;
 	}
-	
+
 	/**
 	 * Returns the position
 	 * @return the position
 	 */
-	public int getPosition()
+	public synchronized long getPosition()
 	{
-		return (currentChunk.index - 1) * CHUNKSIZE + currentChunk.filled;
+		return position;
 	}
-	
+
 	/**
-	 * Sets the new length
+	 * Sets the new length.<br>
+	 * If the content is lengthened, the new part reads as zeros. No memory is allocated for it until it is written.
 	 * @param newLength the new length
 	 * @throws IOException
+	 * @throws DriveFullException the off-heap arena is exhausted
 	 */
-	public void setLength(long newLength) throws IOException {
-		//int oldPos = getPosition();
-		synchronized (chunks)
-		{
-			seek(newLength, true);
-			currentChunk.filled = positionWithinChunk;
-			for (int i = currentChunk.filled; i < CHUNKSIZE; i++)
-				currentChunk.chunk[i] = 0;
-			for (int i = chunks.size() - 1; i > currentChunk.index; i--)
-				chunks.remove(i);
-			lastChunk = currentChunk;
+	public void setLength(long newLength) throws IOException, DriveFullException {
+		if (newLength < 0)
+			throw new IllegalArgumentException("Length should not be negative; was: " + newLength);
+		lock.writeLock().lock();
+		try {
+			if (newLength < length)
+				truncate(newLength);
+			length = newLength;
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
 	/**
-	 * Seeks to the specified offset. If the offset is larger than the content size, the content will <i>NOT</i> be streched.
-	 * @param offset the offset
-	 * @throws IOException
+	 * Shortens the content; the write lock has to be held.<br>
+	 * The tail of the last chunk is zeroed, so a later extension reads zeros.
+	 * @param newLength the new length
+	 * @throws DriveFullException the last chunk is shared and the off-heap arena is exhausted
 	 */
-	public void seek(long offset) throws IOException {
-		synchronized (chunks)
+	private void truncate(long newLength) throws DriveFullException {
+		long newCount = (newLength + CHUNKSIZE - 1) / CHUNKSIZE;
+		int tail = (int) (newLength % CHUNKSIZE);
+		if (tail != 0)
 		{
-			seek(offset, false);
+			Chunk last = chunks.get(newCount - 1);
+			if (last != null)
+				makeExclusive(newCount - 1, last).zero(tail);
 		}
-	} 
+		chunks.releaseFrom(newCount);
+	}
 
 	/**
-	 * Seeks to the specified offset. If the offset is larger than the content size, the content will be streched iff <i>stretch</i> is true.
-	 * @param offset the offset
-	 * @param stretch whether to stretch the content
-	 * @throws IOException
+	 * Reads as much as possible from <i>offset</i> into the remaining part of <i>dst</i>.<br>
+	 * Holes read as zeros.<br>
+	 * The stream position is neither used nor changed.
+	 * @param offset the offset within the content
+	 * @param dst the destination buffer
+	 * @return the number of read bytes
 	 */
-	public void seek(long offset, boolean stretch) throws IOException {
-		synchronized (chunks)
-		{
-			int chunkIndex = (int) (offset / CHUNKSIZE);
-			if (stretch)
-			{
-				while (chunkIndex > chunks.size())
-				{
-					Chunk empty = new Chunk();
-					empty.index = chunks.size();
-					chunks.add(empty);
-					lastChunk = empty;
-				}
-				for (int i = 0; i < chunkIndex; i++)
-				{
-					chunks.get(i).filled = CHUNKSIZE;
-				}
-			} else {
-				long length = getLength();
-				if (offset > length)
-					throw new IllegalArgumentException("Offset out of range: offset = " + offset + ", length = " + length);
-
-			}
-			//At the end of the last chunk...
-			if (chunkIndex > chunks.size() - 1)
-			{
-				Chunk empty = new Chunk();
-				empty.index = chunks.size();
-				empty.filled = 0;
-				chunks.add(empty);
-				lastChunk = empty;
-			}
-				
-			currentChunk = chunks.get(chunkIndex);
-			positionWithinChunk = (int) (offset - chunkIndex * CHUNKSIZE);
-			if (stretch)
+	public int read(long offset, ByteBuffer dst) {
+		lock.readLock().lock();
+		try {
+			long available = length - offset;
+			if (available <= 0)
+				return 0;
+			int toRead = (int) Math.min(dst.remaining(), available);
+			long chunkIndex = offset / CHUNKSIZE;
+			int positionWithinChunk = (int) (offset % CHUNKSIZE);
+			int remaining = toRead;
+			while (remaining > 0)
 			{
-				if (positionWithinChunk > currentChunk.filled)
-					currentChunk.filled = positionWithinChunk;
+				int step = Math.min(remaining, CHUNKSIZE - positionWithinChunk);
+				Chunk chunk = chunks.get(chunkIndex);
+				if (chunk != null)
+					chunk.get(positionWithinChunk, dst, step);
+				else
+					fillZeros(dst, step);
+				remaining -= step;
+				chunkIndex++;
+				positionWithinChunk = 0;
 			}
+			return toRead;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static void fillZeros(ByteBuffer dst, int count) {
+		while (count > 0)
+		{
+			int step = Math.min(count, ZEROS.length);
+			dst.put(ZEROS, 0, step);
+			count -= step;
 		}
 	}
 
 	/**
-	 * Writes <i>input</i> to the memory stream.
-	 * @param input the input data
-	 * @throws IOException
+	 * Writes the remaining part of <i>src</i> at <i>offset</i>.<br>
+	 * If <i>offset</i> is larger than the length, everything in between reads as zeros.<br>
+	 * The stream position is neither used nor changed.
+	 * @param offset the offset within the content
+	 * @param src the source buffer
+	 * @return the number of written bytes
+	 * @throws DriveFullException the off-heap arena is exhausted
 	 */
-	public void write(byte[] input) throws IOException {
-		synchronized (chunks)
-		{
-			if (currentChunk == null)
+	public int write(long offset, ByteBuffer src) throws DriveFullException {
+		int toWrite = src.remaining();
+		if (toWrite == 0)
+			return 0;
+		long end = offset + toWrite;
+		lock.readLock().lock();
+		try {
+			if (end <= length && isWritable(offset, end))
 			{
-				currentChunk = new Chunk();
-				chunks.add(currentChunk);
-				lastChunk = currentChunk;
+				copyInto(offset, src, toWrite);
+				return toWrite;
 			}
-			int toWrite = input.length;
-			int posArray = 0;
-			while (true)
+		} finally {
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try {
+			allocate(offset, end);
+			if (end > length)
+				length = end;
+			copyInto(offset, src, toWrite);
+			return toWrite;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean isWritable(long offset, long end) {
+		long last = (end - 1) / CHUNKSIZE;
+		for (long i = offset / CHUNKSIZE; i <= last; i++)
+		{
+			Chunk chunk = chunks.get(i);
+			if (chunk == null || chunk.isShared())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the chunk by a private copy if it is shared with another stream; the write lock has to be held.
+	 * @param index the index of the chunk
+	 * @param chunk the chunk
+	 * @return the chunk which may be written to
+	 * @throws DriveFullException the off-heap arena is exhausted
+	 */
+	private Chunk makeExclusive(long index, Chunk chunk) throws DriveFullException {
+		if (!chunk.isShared() || chunk.unshare())
+			return chunk;
+		Chunk copy = new Chunk();
+		copy.copyFrom(chunk);
+		chunks.put(index, copy);
+		chunk.release();
+		return copy;
+	}
+
+	/**
+	 * Allocates every missing chunk between <i>offset</i> and <i>end</i> and copies the shared ones; the write lock has to be held.<br>
+	 * If the arena is exhausted, the chunks allocated for holes by this call are released again.
+	 * @throws DriveFullException the off-heap arena is exhausted
+	 */
+	private void allocate(long offset, long end) throws DriveFullException {
+		long first = offset / CHUNKSIZE;
+		long last = (end - 1) / CHUNKSIZE;
+		int count = 0;
+		try {
+			for (long i = first; i <= last; i++)
 			{
-				if (positionWithinChunk + toWrite <= CHUNKSIZE)
+				Chunk chunk = chunks.get(i);
+				if (chunk != null)
+					makeExclusive(i, chunk);
+				else
 				{
-					System.arraycopy(input, posArray, currentChunk.chunk, positionWithinChunk, toWrite);
-					positionWithinChunk += toWrite;
-					int n = positionWithinChunk;
-					if (n > currentChunk.filled)
-						currentChunk.filled = n;
-					if (isAtEnd() && positionWithinChunk == CHUNKSIZE)
-					{
-						Chunk newChunk = new Chunk();
-						newChunk.index = currentChunk.index + 1;
-						chunks.add(newChunk);
-						lastChunk = newChunk;
-						currentChunk = newChunk;
-					}
-					return;
-				} else {
-					int currentStep = CHUNKSIZE - positionWithinChunk;
-					System.arraycopy(input, posArray, currentChunk.chunk, positionWithinChunk, currentStep);
-					positionWithinChunk += currentStep;
-					posArray += currentStep;
-					toWrite -= currentStep;
-					currentChunk.filled = CHUNKSIZE;
-					
-					if (isAtEnd())
-					{
-						Chunk newChunk = new Chunk();
-						newChunk.index = currentChunk.index + 1;
-						chunks.add(newChunk);
-						lastChunk = newChunk;
-						currentChunk = newChunk;
-					} else {
-						currentChunk = getNextChunk(currentChunk);
-					}
-					positionWithinChunk = 0;
+					chunks.put(i, new Chunk());
+					count = collect(count, i);
 				}
 			}
+		} catch (DriveFullException e) {
+			for (int j = 0; j < count; j++)
+				chunks.remove(collected[j]).release();
+			throw e;
 		}
 	}
 
-	private boolean isAtEnd() {
-		if (currentChunk != lastChunk)
-			return false;
-		if (positionWithinChunk == lastChunk.filled)
-			return true;
-		return false;
+	private void copyInto(long offset, ByteBuffer src, int toWrite) {
+		long chunkIndex = offset / CHUNKSIZE;
+		int positionWithinChunk = (int) (offset % CHUNKSIZE);
+		int remaining = toWrite;
+		while (remaining > 0)
+		{
+			int step = Math.min(remaining, CHUNKSIZE - positionWithinChunk);
+			chunks.get(chunkIndex).put(positionWithinChunk, src, step);
+			remaining -= step;
+			chunkIndex++;
+			positionWithinChunk = 0;
+		}
 	}
 
-	private Chunk getNextChunk(Chunk chunk) {
-		return chunks.get(chunk.index + 1); 
+	/**
+	 * Seeks to the specified offset. If the offset is larger than the content size, the content will <i>NOT</i> be streched.
+	 * @param offset the offset
+	 * @throws IOException
+	 */
+	public synchronized void seek(long offset) throws IOException {
+		long length = this.length;
+		if (offset > length)
+			throw new IllegalArgumentException("Offset out of range: offset = " + offset + ", length = " + length);
+		position = offset;
+	}
+
+	/**
+	 * Seeks to the specified offset. If the offset is larger than the content size, the content will be streched iff <i>stretch</i> is true.
+	 * @param offset the offset
+	 * @param stretch whether to stretch the content
+	 * @throws IOException
+	 * @throws DriveFullException the off-heap arena is exhausted
+	 */
+	public synchronized void seek(long offset, boolean stretch) throws IOException, DriveFullException {
+		if (stretch && offset > length)
+			setLength(offset);
+		seek(offset);
+	}
+
+	/**
+	 * Writes <i>input</i> to the memory stream at the current position.
+	 * @param input the input data
+	 * @throws IOException
+	 * @throws DriveFullException the off-heap arena is exhausted
+	 */
+	public synchronized void write(byte[] input) throws IOException, DriveFullException {
+		position += write(position, ByteBuffer.wrap(input));
 	}
 
 	/**
@@ -277,79 +988,36 @@ public class MemoryStream {
 	 * It has no effect.
 	 */
 	public void close() {
-		
+
 	}
 
 	/**
-	 * Reads as much as possible into <i>content</i>
+	 * Reads as much as possible into <i>content</i> from the current position
 	 * @param content the output byte array
 	 * @return the number of read bytes
 	 */
-	public int read(byte[] content) throws IOException {
-		synchronized (chunks)
-		{
-			
-			if (currentChunk == null)
-				return 0;
-			
-			if (isAtEnd())
-				return 0;
-			
-			int toRead = content.length;
-			int posArray = 0;
-			while (true)
-			{
-				if (positionWithinChunk + toRead <= currentChunk.filled)
-				{
-					System.arraycopy(currentChunk.chunk, positionWithinChunk, content, posArray, toRead);
-					positionWithinChunk += toRead;
-					return content.length;
-				} else {
-					int currentStep = currentChunk.filled - positionWithinChunk;
-					try 
-					{
-						System.arraycopy(currentChunk.chunk, positionWithinChunk, content, posArray, currentStep);
-					} catch (Exception ex)
-					{
-						ex.printStackTrace();
-					}
-					posArray += currentStep;
-					toRead -= currentStep;
-					positionWithinChunk += currentStep;
-					boolean isAtEnd = isAtEnd();
-					
-					if (isAtEnd)
-						return content.length - toRead;
-					
-					currentChunk = getNextChunk(currentChunk);
-					positionWithinChunk = 0;
-				}
-			}
-		}
+	public synchronized int read(byte[] content) throws IOException {
+		int read = read(position, ByteBuffer.wrap(content));
+		position += read;
+		return read;
 	}
 
-
-	/**
-	 * Returns the used chunk list
-	 * @return the used chunk list
-	 */
-	public List<Chunk> getChunkList() {
-		return chunks;
-	}
-	
 	/**
 	 * Returns the content as a single byte array
 	 * @return the content as a single byte array
-	 * @throws IOException
+	 * @throws IOException the content is too large for a single array
 	 */
 	public byte[] toArray() throws IOException
 	{
-		int pos = getPosition();
-		byte[] res = new byte[getLength()];
-		seek(0);
-		read(res);
-		seek(pos);
-		return res;
+		lock.readLock().lock();
+		try {
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("Content too large for a single array: " + length);
+			byte[] res = new byte[(int) length];
+			read(0, ByteBuffer.wrap(res));
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 }
- 
\ No newline at end of file
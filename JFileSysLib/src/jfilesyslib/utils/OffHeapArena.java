@@ -0,0 +1,180 @@
+package jfilesyslib.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import jfilesyslib.exceptions.DriveFullException;
+
+
+/**
+ * Hands out fixed size chunks of memory outside of the java heap.<br>
+ * The memory is reserved in slabs of direct byte buffers, which are cut into chunks.<br>
+ * Freed chunks are zeroed and reused; the slabs themselves are never returned to the operating system.<br>
+ * Chunks are identified by a number. They are accessed through per-thread views of their slab,
+ * so copying from or to a chunk does not allocate.<br>
+ * It is <i>thread safe</i>.
+ * @author Marc Miltenberger
+ */
+public class OffHeapArena {
+	/**
+	 * The default size of a single slab in bytes
+	 */
+	public static final int DEFAULTSLABSIZE = 1024 * 1024 * 4;
+	private static final byte[] ZEROS = new byte[4096];
+
+	private final int chunkSize;
+	private final int chunksPerSlab;
+	private final long capacity;
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private int[] freeChunks = new int[64];
+	private int freeChunkCount = 0;
+	private long reservedChunks = 0;
+	private long usedChunks = 0;
+	private final ThreadLocal<ByteBuffer[]> views = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[0];
+		}
+	};
+
+	/**
+	 * Creates a new off-heap arena using the default chunk size of the memory stream.
+	 * @param capacity the maximum number of bytes to allocate outside of the heap
+	 */
+	public OffHeapArena(long capacity) {
+		this(capacity, MemoryStream.DEFAULTCHUNKSIZE);
+	}
+
+	/**
+	 * Creates a new off-heap arena.
+	 * @param capacity the maximum number of bytes to allocate outside of the heap
+	 * @param chunkSize the size of each chunk in bytes
+	 */
+	public OffHeapArena(long capacity, int chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunkSize should be positive; was: " + chunkSize);
+		if (capacity < chunkSize)
+			throw new IllegalArgumentException("capacity should hold at least one chunk; was: " + capacity);
+		this.chunkSize = chunkSize;
+		this.capacity = capacity;
+		this.chunksPerSlab = Math.max(1, DEFAULTSLABSIZE / chunkSize);
+	}
+
+	/**
+	 * Returns the number of a zeroed chunk.
+	 * @return the chunk number
+	 * @throws DriveFullException the capacity of the arena is exhausted
+	 */
+	public synchronized int allocate() throws DriveFullException {
+		if (freeChunkCount == 0)
+			reserveSlab();
+		usedChunks++;
+		return freeChunks[--freeChunkCount];
+	}
+
+	/**
+	 * Returns a chunk to the arena.<br>
+	 * The chunk must have been allocated by this arena and must not be used afterwards.
+	 * @param chunk the chunk number
+	 */
+	public synchronized void free(int chunk) {
+		ByteBuffer slab = slabs.get(chunk / chunksPerSlab);
+		int offset = getOffset(chunk);
+		slab.clear();
+		slab.position(offset);
+		slab.limit(offset + chunkSize);
+		while (slab.hasRemaining())
+			slab.put(ZEROS, 0, Math.min(ZEROS.length, slab.remaining()));
+		pushFree(chunk);
+		usedChunks--;
+	}
+
+	private void pushFree(int chunk) {
+		if (freeChunkCount == freeChunks.length)
+		{
+			int[] newFreeChunks = new int[freeChunks.length * 2];
+			System.arraycopy(freeChunks, 0, newFreeChunks, 0, freeChunkCount);
+			freeChunks = newFreeChunks;
+		}
+		freeChunks[freeChunkCount++] = chunk;
+	}
+
+	private void reserveSlab() throws DriveFullException {
+		long maxChunks = capacity / chunkSize;
+		int count = (int) Math.min(chunksPerSlab, maxChunks - reservedChunks);
+		if (count <= 0)
+			throw new DriveFullException();
+		int first = slabs.size() * chunksPerSlab;
+		slabs.add(ByteBuffer.allocateDirect(count * chunkSize));
+		// hand out the lowest numbers first
+		for (int i = count - 1; i >= 0; i--)
+			pushFree(first + i);
+		reservedChunks += count;
+	}
+
+	/**
+	 * Returns the calling thread's view of the slab the chunk belongs to.<br>
+	 * The chunk starts at {@link #getOffset(int)} within the view.
+	 * The view must only be used by the calling thread; its position and limit may be changed freely.
+	 * @param chunk the chunk number
+	 * @return the view
+	 */
+	public ByteBuffer getView(int chunk) {
+		int slab = chunk / chunksPerSlab;
+		ByteBuffer[] threadViews = views.get();
+		if (slab >= threadViews.length || threadViews[slab] == null)
+		{
+			synchronized (this)
+			{
+				ByteBuffer[] newViews = new ByteBuffer[slabs.size()];
+				System.arraycopy(threadViews, 0, newViews, 0, threadViews.length);
+				newViews[slab] = slabs.get(slab).duplicate();
+				threadViews = newViews;
+			}
+			views.set(threadViews);
+		}
+		return threadViews[slab];
+	}
+
+	/**
+	 * Returns the offset of the chunk within its slab
+	 * @param chunk the chunk number
+	 * @return the offset in bytes
+	 */
+	public int getOffset(int chunk) {
+		return (chunk % chunksPerSlab) * chunkSize;
+	}
+
+	/**
+	 * Returns the size of each chunk in bytes
+	 * @return the chunk size
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the maximum number of bytes this arena may allocate
+	 * @return the capacity in bytes
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of bytes currently handed out as chunks
+	 * @return the used bytes
+	 */
+	public synchronized long getUsedBytes() {
+		return usedChunks * chunkSize;
+	}
+
+	/**
+	 * Returns the number of bytes which may still be handed out
+	 * @return the free bytes
+	 */
+	public synchronized long getFreeBytes() {
+		return (capacity / chunkSize - usedChunks) * chunkSize;
+	}
+}
@@ -404,7 +404,7 @@ public  class TestFileSystem {
 				ms.write(buffer);
 			}
 			ms.close();
-			byte[] res = new byte[ms.getLength()];
+			byte[] res = new byte[(int) ms.getLength()];
 			fileSystem.read(handle, ByteBuffer.wrap(res), 0);
 			fileSystem.close(handle);
 			byteArrayCompare(ms.toArray(), res);